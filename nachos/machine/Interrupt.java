@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +51,13 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+
+		wheelHead = new PendingInterrupt[wheelSize];
+		wheelTail = new PendingInterrupt[wheelSize];
+		wheelOccupied = new long[wheelSize / 64];
+		overflow = new PendingInterrupt[16];
+
+		tracing = Lib.test(dbgInt);
 	}
 
 	/**
@@ -101,6 +106,34 @@ public final class Interrupt {
 		return oldStatus;
 	}
 
+	/**
+	 * Advance the simulated time to just before the next pending interrupt
+	 * falls due. This has the same effect as a loop that disables and then
+	 * re-enables interrupts until the interrupt fires, but without running the
+	 * loop: the time is advanced by whole <tt>Stats.KernelTick</tt> steps, so
+	 * the interrupt still fires on the tick it would have fired on when
+	 * interrupts are next enabled, and the simulation stays deterministic.
+	 * 
+	 * <p>
+	 * Interrupts must be disabled, and the caller must have nothing to do
+	 * before the next interrupt (e.g. the idle thread with an empty ready
+	 * queue).
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		long remaining = timeUntilNextInterrupt();
+		if (remaining == Long.MAX_VALUE || remaining <= 0 || tracing)
+			return;
+
+		// number of ticks after which the interrupt is still not due
+		long skipped = (remaining - 1) / Stats.KernelTick;
+
+		Stats stats = privilege.stats;
+		stats.kernelTicks += Stats.KernelTick * skipped;
+		stats.totalTicks += Stats.KernelTick * skipped;
+	}
+
 	/**
 	 * Tests whether interrupts are enabled.
 	 * 
@@ -119,31 +152,200 @@ public final class Interrupt {
 		return !enabled;
 	}
 
-	private void schedule(long when, String type, Runnable handler) {
+	private long schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		PendingInterrupt toOccur = freeList;
+		if (toOccur != null)
+			freeList = toOccur.next;
+		else
+			toOccur = new PendingInterrupt();
 
-		pending.add(toOccur);
+		toOccur.time = time;
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.id = numPendingInterruptsCreated++;
+		toOccur.next = null;
+
+		if (tracing)
+			System.out.println("Scheduling the " + type
+					+ " interrupt handler at time = " + time);
+
+		insert(toOccur);
+
+		if (time < nextTime)
+			nextTime = time;
+
+		return toOccur.id;
+	}
+
+	/**
+	 * Cancel a pending interrupt. This is linear in the number of pending
+	 * interrupts.
+	 * 
+	 * @param id the value returned by <tt>schedule()</tt>.
+	 * @return <tt>true</tt> if the interrupt was still pending.
+	 */
+	private boolean cancel(long id) {
+		PendingInterrupt removed = null;
+
+		for (int slot = 0; slot < wheelSize && removed == null; slot++) {
+			PendingInterrupt prev = null;
+			for (PendingInterrupt p = wheelHead[slot]; p != null; p = p.next) {
+				if (p.id == id) {
+					unlink(slot, prev, p);
+					removed = p;
+					break;
+				}
+				prev = p;
+			}
+		}
+
+		for (int i = 0; i < overflowSize && removed == null; i++) {
+			if (overflow[i].id == id) {
+				removed = overflow[i];
+				removeOverflow(i);
+			}
+		}
+
+		if (removed == null)
+			return false;
+
+		if (removed.time == nextTime)
+			nextTime = findNextTime();
+
+		recycle(removed);
+		return true;
+	}
+
+	private void insert(PendingInterrupt toOccur) {
+		// the wheel covers times [wheelTime, wheelTime + wheelSize), one time
+		// per slot, so appending keeps each slot in scheduling order
+		if (toOccur.time - wheelTime < wheelSize) {
+			int slot = (int) (toOccur.time & (wheelSize - 1));
+
+			if (wheelTail[slot] == null) {
+				wheelHead[slot] = toOccur;
+				wheelOccupied[slot >>> 6] |= 1L << slot;
+			}
+			else {
+				wheelTail[slot].next = toOccur;
+			}
+			wheelTail[slot] = toOccur;
+		}
+		else {
+			if (overflowSize == overflow.length) {
+				PendingInterrupt[] larger = new PendingInterrupt[overflowSize * 2];
+				System.arraycopy(overflow, 0, larger, 0, overflowSize);
+				overflow = larger;
+			}
+
+			int i = overflowSize++;
+			while (i > 0 && toOccur.compareTo(overflow[(i - 1) / 2]) < 0) {
+				overflow[i] = overflow[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			overflow[i] = toOccur;
+		}
+	}
+
+	private void unlink(int slot, PendingInterrupt prev, PendingInterrupt p) {
+		if (prev == null)
+			wheelHead[slot] = p.next;
+		else
+			prev.next = p.next;
+
+		if (wheelTail[slot] == p)
+			wheelTail[slot] = prev;
+
+		if (wheelHead[slot] == null)
+			wheelOccupied[slot >>> 6] &= ~(1L << slot);
+
+		p.next = null;
+	}
+
+	private void removeOverflow(int i) {
+		PendingInterrupt last = overflow[--overflowSize];
+		overflow[overflowSize] = null;
+		if (i == overflowSize)
+			return;
+
+		// sift the last element up or down from the vacated position
+		while (i > 0 && last.compareTo(overflow[(i - 1) / 2]) < 0) {
+			overflow[i] = overflow[(i - 1) / 2];
+			i = (i - 1) / 2;
+		}
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= overflowSize)
+				break;
+			if (child + 1 < overflowSize
+					&& overflow[child + 1].compareTo(overflow[child]) < 0)
+				child++;
+			if (overflow[child].compareTo(last) >= 0)
+				break;
+			overflow[i] = overflow[child];
+			i = child;
+		}
+		overflow[i] = last;
+	}
+
+	/**
+	 * Move the wheel forward so that it starts at <i>time</i>, pulling any
+	 * overflow interrupts that now fall inside it onto the wheel. All slots
+	 * for times before <i>time</i> must be empty.
+	 */
+	private void advanceWheel(long time) {
+		if (time <= wheelTime)
+			return;
+
+		wheelTime = time;
+
+		while (overflowSize > 0 && overflow[0].time - wheelTime < wheelSize) {
+			PendingInterrupt toOccur = overflow[0];
+			removeOverflow(0);
+			insert(toOccur);
+		}
+	}
+
+	private long findNextTime() {
+		for (long t = wheelTime; t < wheelTime + wheelSize;) {
+			int slot = (int) (t & (wheelSize - 1));
+			long bits = wheelOccupied[slot >>> 6] >>> slot;
+			if (bits != 0)
+				return t + Long.numberOfTrailingZeros(bits);
+			t += 64 - (slot & 63);
+		}
+
+		return overflowSize > 0 ? overflow[0].time : Long.MAX_VALUE;
+	}
+
+	private void recycle(PendingInterrupt toOccur) {
+		toOccur.type = null;
+		toOccur.handler = null;
+		toOccur.next = freeList;
+		freeList = toOccur;
 	}
 
 	private void tick(boolean inKernelMode) {
+		tick(inKernelMode, 1);
+	}
+
+	private void tick(boolean inKernelMode, int count) {
 		Stats stats = privilege.stats;
 
 		if (inKernelMode) {
-			stats.kernelTicks += Stats.KernelTick;
-			stats.totalTicks += Stats.KernelTick;
+			stats.kernelTicks += Stats.KernelTick * count;
+			stats.totalTicks += Stats.KernelTick * count;
 		}
 		else {
-			stats.userTicks += Stats.UserTick;
-			stats.totalTicks += Stats.UserTick;
+			stats.userTicks += Stats.UserTick * count;
+			stats.totalTicks += Stats.UserTick * count;
 		}
 
-		if (Lib.test(dbgInt))
+		if (tracing)
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
 		enabled = false;
@@ -151,37 +353,57 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long timeUntilNextInterrupt() {
+		if (nextTime == Long.MAX_VALUE)
+			return Long.MAX_VALUE;
+
+		return nextTime - privilege.stats.totalTicks;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
 		Lib.assertTrue(disabled());
 
-		if (Lib.test(dbgInt))
+		if (tracing)
 			print();
 
-		if (pending.isEmpty())
+		if (nextTime > time) {
+			advanceWheel(time + 1);
 			return;
+		}
 
-		if (((PendingInterrupt) pending.first()).time > time)
-			return;
+		if (tracing)
+			System.out.println("Invoking interrupt handlers at time = " + time);
+
+		while (nextTime <= time) {
+			advanceWheel(nextTime);
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+			int slot = (int) (nextTime & (wheelSize - 1));
+			PendingInterrupt next = wheelHead[slot];
+			unlink(slot, null, next);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+			if (wheelHead[slot] == null)
+				nextTime = findNextTime();
 
 			Lib.assertTrue(next.time <= time);
 
+			// the record may be reused by a schedule() call in the handler
+			String type = next.type;
+			Runnable handler = next.handler;
+			recycle(next);
+
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (tracing)
+				System.out.println("  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
+		advanceWheel(time + 1);
+
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
@@ -190,26 +412,29 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		ArrayList<PendingInterrupt> pending = new ArrayList<PendingInterrupt>();
+		for (int slot = 0; slot < wheelSize; slot++) {
+			for (PendingInterrupt p = wheelHead[slot]; p != null; p = p.next)
+				pending.add(p);
+		}
+		for (int i = 0; i < overflowSize; i++)
+			pending.add(overflow[i]);
+		Collections.sort(pending);
+
+		for (PendingInterrupt toOccur : pending)
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
-		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
-
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
+	/**
+	 * A scheduled interrupt. Records are reused once their interrupt has fired
+	 * or been cancelled; <tt>id</tt> identifies one particular scheduling.
+	 */
+	private static class PendingInterrupt implements
+			Comparable<PendingInterrupt> {
+		public int compareTo(PendingInterrupt toOccur) {
 			// can't return 0 for unequal objects, so check all fields
 			if (time < toOccur.time)
 				return -1;
@@ -229,7 +454,10 @@ public final class Interrupt {
 
 		Runnable handler;
 
-		private long id;
+		long id;
+
+		/** The next record in the same wheel slot or in the free list. */
+		PendingInterrupt next;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,17 +466,62 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/**
+	 * Number of slots in the timing wheel, and so the number of ticks it
+	 * covers. Must be a multiple of 64.
+	 */
+	private static final int wheelSize = 1024;
+
+	/** The earliest time covered by the wheel. */
+	private long wheelTime = 0;
+
+	/** First and last pending interrupt in each wheel slot. */
+	private PendingInterrupt[] wheelHead, wheelTail;
+
+	/** One bit per wheel slot, set if the slot is not empty. */
+	private long[] wheelOccupied;
+
+	/**
+	 * Binary heap, ordered by time and then id, of the pending interrupts that
+	 * are too far in the future to fit on the wheel.
+	 */
+	private PendingInterrupt[] overflow;
+
+	private int overflowSize = 0;
+
+	/**
+	 * The time of the earliest pending interrupt, or <tt>Long.MAX_VALUE</tt>
+	 * if there is none.
+	 */
+	private long nextTime = Long.MAX_VALUE;
+
+	/** Records of interrupts that have fired, available for reuse. */
+	private PendingInterrupt freeList = null;
+
+	/** <tt>true</tt> if the interrupt debug flag was set at startup. */
+	private final boolean tracing;
 
 	private static final char dbgInt = 'i';
 
 	private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-		public void schedule(long when, String type, Runnable handler) {
-			Interrupt.this.schedule(when, type, handler);
+		public long schedule(long when, String type, Runnable handler) {
+			return Interrupt.this.schedule(when, type, handler);
+		}
+
+		public boolean cancel(long id) {
+			return Interrupt.this.cancel(id);
 		}
 
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long timeUntilNextInterrupt() {
+			return Interrupt.this.timeUntilNextInterrupt();
+		}
 	}
 }
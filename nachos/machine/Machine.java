@@ -89,6 +89,8 @@ public final class Machine {
 			throw (ThreadDeath) e;
 
 		e.printStackTrace();
+		if (processor != null)
+			processor.dumpTrace();
 		terminate();
 	}
 
@@ -365,6 +367,70 @@ public final class Machine {
 		return autoGrader;
 	}
 
+	/**
+	 * Count a file block found in the buffer cache.
+	 */
+	public static void incrNumCacheHits() {
+		stats.numCacheHits++;
+	}
+
+	/**
+	 * Count a file block not found in the buffer cache.
+	 */
+	public static void incrNumCacheMisses() {
+		stats.numCacheMisses++;
+	}
+
+	/**
+	 * Count a page read from a COFF file by the paging system.
+	 */
+	public static void incrNumCOFFReads() {
+		stats.numCOFFReads++;
+	}
+
+	/**
+	 * Count a page read from swap.
+	 */
+	public static void incrNumSwapReads() {
+		stats.numSwapReads++;
+	}
+
+	/**
+	 * Count a page written to swap.
+	 */
+	public static void incrNumSwapWrites() {
+		stats.numSwapWrites++;
+	}
+
+	/**
+	 * Count a page fault satisfied by a page read ahead from swap.
+	 */
+	public static void incrNumPrefetchHits() {
+		stats.numPrefetchHits++;
+	}
+
+	/**
+	 * Count a page read ahead from swap but never used.
+	 */
+	public static void incrNumPrefetchMisses() {
+		stats.numPrefetchMisses++;
+	}
+
+	/**
+	 * Count a hit seen by page replacement: a resident page found referenced,
+	 * or a page faulted in again while the policy still remembered it.
+	 */
+	public static void incrNumPageHits() {
+		stats.numPageHits++;
+	}
+
+	/**
+	 * Count a page evicted to free a frame.
+	 */
+	public static void incrNumPageEvictions() {
+		stats.numPageEvictions++;
+	}
+
 	private static Interrupt interrupt = null;
 
 	private static Timer timer = null;
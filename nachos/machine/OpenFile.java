@@ -136,6 +136,98 @@ public class OpenFile {
 		return -1;
 	}
 
+	/**
+	 * Read this file starting at the current file pointer directly into main
+	 * memory, filling <i>segments</i> in order. Stops at the first segment
+	 * that is not filled completely. Physically adjacent segments are read
+	 * with a single call to <tt>read(byte[], int, int)</tt>.
+	 * 
+	 * @param segments the pieces of main memory to store the bytes in.
+	 * @return the actual number of bytes successfully read, or -1 if nothing
+	 * could be read because of a fatal error.
+	 */
+	public int read(Segment[] segments) {
+		byte[] memory = Machine.processor().getMemory();
+		int total = 0;
+		for (int i = 0; i < segments.length;) {
+			int paddr = segments[i].getAddress(), length = 0;
+			for (; i < segments.length && segments[i].getAddress() == paddr + length; i++)
+				length += segments[i].length;
+
+			int amount = read(memory, paddr, length);
+			if (amount == -1)
+				return (total == 0) ? -1 : total;
+			total += amount;
+			if (amount < length)
+				break;
+		}
+		return total;
+	}
+
+	/**
+	 * Write this file starting at the current file pointer directly from main
+	 * memory, taking <i>segments</i> in order. Stops at the first segment that
+	 * is not written completely. Physically adjacent segments are written with
+	 * a single call to <tt>write(byte[], int, int)</tt>.
+	 * 
+	 * @param segments the pieces of main memory to get the bytes from.
+	 * @return the actual number of bytes successfully written, or -1 if
+	 * nothing could be written because of a fatal error.
+	 */
+	public int write(Segment[] segments) {
+		byte[] memory = Machine.processor().getMemory();
+		int total = 0;
+		for (int i = 0; i < segments.length;) {
+			int paddr = segments[i].getAddress(), length = 0;
+			for (; i < segments.length && segments[i].getAddress() == paddr + length; i++)
+				length += segments[i].length;
+
+			int amount = write(memory, paddr, length);
+			if (amount == -1)
+				return (total == 0) ? -1 : total;
+			total += amount;
+			if (amount < length)
+				break;
+		}
+		return total;
+	}
+
+	/**
+	 * A run of bytes within one physical page of main memory.
+	 */
+	public static class Segment {
+		/**
+		 * Allocate a new segment.
+		 * 
+		 * @param ppn the physical page holding the bytes.
+		 * @param offset the offset of the first byte within the page.
+		 * @param length the number of bytes.
+		 */
+		public Segment(int ppn, int offset, int length) {
+			Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= Processor.pageSize);
+
+			this.ppn = ppn;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Return the address of the first byte in main memory.
+		 */
+		public int getAddress() {
+			return Processor.makeAddress(ppn, offset);
+		}
+
+		/** The physical page holding the bytes. */
+		public final int ppn;
+
+		/** The offset of the first byte within the page. */
+		public final int offset;
+
+		/** The number of bytes. */
+		public final int length;
+	}
+
 	private FileSystem fileSystem;
 
 	private String name;
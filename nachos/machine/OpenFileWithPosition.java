@@ -4,6 +4,12 @@ package nachos.machine;
 
 /**
  * An <tt>OpenFile</tt> that maintains a current file position.
+ *
+ * <p>
+ * A read that starts where the previous one ended continues a sequential
+ * scan. Each such read doubles how far ahead the file is likely to be read
+ * next, up to <tt>maxReadAhead</tt> bytes, and passes that on to the file
+ * system as a hint; any other read starts over.
  */
 public abstract class OpenFileWithPosition extends OpenFile {
 	/**
@@ -34,14 +40,31 @@ public abstract class OpenFileWithPosition extends OpenFile {
 	}
 
 	public int read(byte[] buf, int offset, int length) {
-		int amount = read(position, buf, offset, length);
+		if (position == sequentialEnd)
+			readAhead = (readAhead == 0) ? minReadAhead : Math.min(2 * readAhead, maxReadAhead);
+		else
+			readAhead = 0;
+
+		int amount = read(position, buf, offset, length, readAhead);
 		if (amount == -1)
 			return -1;
 
 		position += amount;
+		sequentialEnd = position;
 		return amount;
 	}
 
+	/**
+	 * Read this file like <tt>read(int, byte[], int, int)</tt>, knowing that
+	 * the <i>ahead</i> bytes after the ones requested are likely to be read
+	 * next. The default ignores the hint.
+	 * 
+	 * @param ahead the number of bytes worth reading ahead.
+	 */
+	protected int read(int pos, byte[] buf, int offset, int length, int ahead) {
+		return read(pos, buf, offset, length);
+	}
+
 	public int write(byte[] buf, int offset, int length) {
 		int amount = write(position, buf, offset, length);
 		if (amount == -1)
@@ -55,4 +78,14 @@ public abstract class OpenFileWithPosition extends OpenFile {
 	 * The current value of the file pointer.
 	 */
 	protected int position = 0;
+
+	/** Where the last read ended, or -1 before the first read. */
+	private int sequentialEnd = -1;
+
+	/** The current read-ahead hint, or 0 if access is not sequential. */
+	private int readAhead = 0;
+
+	private static final int minReadAhead = Processor.pageSize;
+
+	private static final int maxReadAhead = 16 * Processor.pageSize;
 }
@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import nachos.security.*;
+import java.util.Arrays;
 
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
@@ -47,10 +48,41 @@ public final class Processor {
 
 		mainMemory = new byte[pageSize * numPhysPages];
 
+		predecoded = new Predecoded[numPhysPages][];
+
+		traceProcessor = Lib.test(dbgProcessor);
+		traceDisassemble = Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble);
+
+		int traceBufferSize = Config.getInteger("Processor.traceBufferSize", 0);
+		if (traceBufferSize > 0)
+			traceBuffer = new int[traceBufferSize * 2];
+
+		// translated blocks cannot honour the per-instruction trace output
+		usingBlocks = Config.getBoolean("Processor.jit", false)
+				&& !traceProcessor && !traceDisassemble && traceBuffer == null;
+
+		if (usingBlocks)
+			blocks = new Block[numPhysPages][];
+
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			tlbWays = Config.getInteger("Processor.tlbAssociativity", tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0);
+			tlbSets = tlbSize / tlbWays;
+			Lib.assertTrue((tlbSets & (tlbSets - 1)) == 0,
+					"number of TLB sets must be a power of two");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			int buckets = 1;
+			while (buckets < tlbSize * 2)
+				buckets *= 2;
+			tlbHashHead = new int[buckets];
+			tlbHashNext = new int[tlbSize];
+			Arrays.fill(tlbHashHead, -1);
 		}
 		else {
 			translations = null;
@@ -93,15 +125,58 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
-		while (true) {
-			try {
-				inst.run();
+		// pick the loop once, so the untraced loop never looks at a debug flag
+		if (traceProcessor || traceDisassemble || traceBuffer != null) {
+			while (true) {
+				try {
+					inst.runTraced();
+				}
+				catch (MipsException e) {
+					e.handle();
+				}
+
+				privilege.interrupt.tick(false);
 			}
-			catch (MipsException e) {
-				e.handle();
+		}
+		else {
+			while (true) {
+				try {
+					if (!usingBlocks || !runBlock())
+						inst.run();
+				}
+				catch (MipsException e) {
+					e.handle();
+				}
+
+				privilege.interrupt.tick(false);
 			}
+		}
+	}
 
-			privilege.interrupt.tick(false);
+	/**
+	 * Print the instructions recorded in the trace buffer, oldest first. The
+	 * buffer holds the last <tt>Processor.traceBufferSize</tt> instructions
+	 * executed; if that is 0 (the default), nothing is recorded and this
+	 * method prints nothing.
+	 */
+	public void dumpTrace() {
+		if (traceBuffer == null)
+			return;
+
+		int entries = traceBuffer.length / 2;
+		long first = Math.max(0, traceCount - entries);
+
+		System.out.println("Instruction trace (last " + (traceCount - first)
+				+ " of " + traceCount + "):");
+
+		for (long n = first; n < traceCount; n++) {
+			int i = (int) (n % entries) * 2;
+			String name = new Predecoded(traceBuffer[i + 1]).name;
+
+			System.out.println("  PC=0x" + Lib.toHexString(traceBuffer[i])
+					+ "\t0x" + Lib.toHexString(traceBuffer[i + 1]) + "\t"
+					+ (name == null ? "invalid"
+							: name.substring(0, name.indexOf(' '))));
 		}
 	}
 
@@ -175,6 +250,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		fetchEntry = null;
 	}
 
 	/**
@@ -188,6 +264,60 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the associativity of this processor's TLB, set by
+	 * <tt>Processor.tlbAssociativity</tt> (by default equal to the TLB size,
+	 * i.e. fully associative). Entries <tt>set * ways</tt> through
+	 * <tt>set * ways + ways - 1</tt> form one set.
+	 * 
+	 * @return the number of ways in each TLB set.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the TLB set a translation for the specified virtual page must be
+	 * placed in.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the set index, between 0 and
+	 * <tt>getTLBSize() / getTLBAssociativity() - 1</tt>.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		return vpn & (tlbSets - 1);
+	}
+
+	/**
+	 * Return the current address space identifier.
+	 * 
+	 * @return the current ASID.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return asid;
+	}
+
+	/**
+	 * Set the current address space identifier. From now on only TLB entries
+	 * whose <tt>asid</tt> field equals <i>asid</i> will match, so a kernel that
+	 * gives each process its own ASID need not flush the TLB on a context
+	 * switch.
+	 * 
+	 * @param asid the new ASID.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+
+		this.asid = asid;
+		fetchEntry = null;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +335,10 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * By default the TLB is fully associative, so the location of an entry
+	 * within the TLB does not affect anything. If the TLB is set associative,
+	 * a valid entry must be written to one of the ways of the set given by
+	 * <tt>getTLBSet()</tt>.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -214,8 +346,40 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid || number / tlbWays == getTLBSet(entry.vpn));
+
+		if (translations[number].valid)
+			unlinkTLBEntry(number);
 
 		translations[number] = new TranslationEntry(entry);
+
+		if (entry.valid) {
+			int bucket = tlbHash(entry.vpn, entry.asid);
+			tlbHashNext[number] = tlbHashHead[bucket];
+			tlbHashHead[bucket] = number;
+		}
+
+		fetchEntry = null;
+	}
+
+	private int tlbHash(int vpn, int asid) {
+		return ((vpn ^ (asid << 20)) * 0x9E3779B1 >>> 12) & (tlbHashHead.length - 1);
+	}
+
+	private void unlinkTLBEntry(int number) {
+		TranslationEntry old = translations[number];
+		int bucket = tlbHash(old.vpn, old.asid);
+
+		if (tlbHashHead[bucket] == number) {
+			tlbHashHead[bucket] = tlbHashNext[number];
+			return;
+		}
+		for (int i = tlbHashHead[bucket]; i != -1; i = tlbHashNext[i]) {
+			if (tlbHashNext[i] == number) {
+				tlbHashNext[i] = tlbHashNext[number];
+				return;
+			}
+		}
 	}
 
 	/**
@@ -292,7 +456,7 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
 
@@ -319,10 +483,10 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look up the TLB hash chain for matching vpn and asid
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+			for (int i = tlbHashHead[tlbHash(vpn, asid)]; i != -1; i = tlbHashNext[i]) {
+				if (translations[i].vpn == vpn && translations[i].asid == asid) {
 					entry = translations[i];
 					break;
 				}
@@ -354,11 +518,43 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
+		translatedEntry = entry;
+
+		if (traceProcessor)
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
 
+	/**
+	 * Translate the address of an instruction fetch. Consecutive fetches almost
+	 * always hit the same page, so the last fetch translation is remembered and
+	 * reused while it is still installed; otherwise this is the same as
+	 * <tt>translate(vaddr, 4, false)</tt>.
+	 * 
+	 * @param vaddr the virtual address of the instruction.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translateFetch(int vaddr) throws MipsException {
+		int vpn = pageFromAddress(vaddr);
+		TranslationEntry entry = fetchEntry;
+
+		// the TLB copies entries on write, so only the page table can change
+		// an installed entry behind our back
+		if (entry != null && vpn == fetchVpn && (vaddr & 3) == 0 && entry.valid
+				&& (usingTLB || translations[vpn] == entry)
+				&& entry.ppn >= 0 && entry.ppn < numPhysPages
+				&& !traceProcessor) {
+			entry.used = true;
+			return entry.ppn * pageSize + offsetFromAddress(vaddr);
+		}
+
+		int paddr = translate(vaddr, 4, false);
+		fetchVpn = vpn;
+		fetchEntry = translatedEntry;
+		return paddr;
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -369,16 +565,27 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		return readPhysMem(translate(vaddr, size, false), size);
+	}
+
+	/**
+	 * Read <i>size</i> (1, 2, or 4) bytes of physical memory at <i>paddr</i>,
+	 * which must already have been produced by <tt>translate()</tt>.
+	 * 
+	 * @param paddr the physical address to read from.
+	 * @param size the number of bytes to read (1, 2, or 4).
+	 * @return the value read.
+	 */
+	private int readPhysMem(int paddr, int size) {
+		int value = Lib.bytesToInt(mainMemory, paddr, size);
 
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\t\tvalue read=0x"
 					+ Lib.toHexString(value, size * 2));
 
@@ -395,14 +602,18 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
 					+ Lib.toHexString(value, size * 2));
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		if (paddr / pageSize == blockPage)
+			blockPageWritten = true;
 	}
 
 	/**
@@ -546,12 +757,57 @@ public final class Processor {
 	/** The value to be loaded by the delayed load currently in progress. */
 	private int loadValue;
 
+	/** <tt>true</tt> if the processor debug flag was set at startup. */
+	private final boolean traceProcessor;
+
+	/** <tt>true</tt> if either disassembly debug flag was set at startup. */
+	private final boolean traceDisassemble;
+
+	/**
+	 * Ring buffer of (PC, instruction) pairs for the most recently executed
+	 * instructions, or <tt>null</tt> if instruction tracing is disabled.
+	 */
+	private int[] traceBuffer = null;
+
+	/** The number of instructions ever recorded in the trace buffer. */
+	private long traceCount = 0;
+
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbWays;
+
+	/** Number of TLB sets; always a power of two. */
+	private int tlbSets;
+
+	/**
+	 * Heads of the TLB hash chains, indexed by <tt>tlbHash()</tt>; each holds
+	 * the index of a valid TLB entry, or -1.
+	 */
+	private int[] tlbHashHead;
+
+	/** The next valid TLB entry in the same hash chain, or -1. */
+	private int[] tlbHashNext;
+
+	/** The current address space identifier. */
+	private int asid = 0;
+
+	/** The entry used by the last successful call to <tt>translate()</tt>. */
+	private TranslationEntry translatedEntry;
+
+	/** The virtual page of the last instruction fetch translation. */
+	private int fetchVpn;
+
+	/**
+	 * The entry used by the last instruction fetch translation, or
+	 * <tt>null</tt> if it must not be reused.
+	 */
+	private TranslationEntry fetchEntry;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -570,6 +826,41 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Decoded instructions, indexed by physical page and then by word within
+	 * the page. A page's array is allocated the first time an instruction is
+	 * fetched from it.
+	 */
+	private Predecoded[][] predecoded;
+
+	/**
+	 * <tt>true</tt> if straight-line code is run as translated blocks rather
+	 * than one interpreted instruction at a time. Set by
+	 * <tt>Processor.jit</tt>.
+	 */
+	private boolean usingBlocks;
+
+	/**
+	 * Translated blocks, indexed by the physical page and word of their first
+	 * instruction.
+	 */
+	private Block[][] blocks;
+
+	/** The physical page of the block being run, or -1 if none is. */
+	private int blockPage = -1;
+
+	/** Set when a store hits the physical page of the block being run. */
+	private boolean blockPageWritten;
+
+	/** Where the block being run continues after its branch delay slot. */
+	private int blockBranchTarget;
+
+	/** Used by translated blocks to run instructions without their own op. */
+	private Instruction blockInstruction = new Instruction();
+
+	/** The maximum number of instructions in a translated block. */
+	private static final int maxBlockLength = 64;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -605,7 +896,7 @@ public final class Processor {
 			if (hasBadVAddr)
 				writeRegister(regBadVAddr, badVAddr);
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (traceDisassemble)
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
@@ -633,73 +924,98 @@ public final class Processor {
 			writeBack();
 		}
 
-		private boolean test(int flag) {
-			return Lib.test(flag, flags);
-		}
-
-		private void fetch() throws MipsException {
+		/**
+		 * Same as <tt>run()</tt>, but also produce the debugging output
+		 * selected by the debug flags and record the instruction in the trace
+		 * buffer.
+		 */
+		public void runTraced() throws MipsException {
 			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
 					|| Lib.test(dbgFullDisassemble))
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (traceProcessor)
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
+
+			fetch();
+
+			if (traceBuffer != null) {
+				int i = (int) (traceCount++ % (traceBuffer.length / 2)) * 2;
+				traceBuffer[i] = registers[regPC];
+				traceBuffer[i + 1] = value;
+			}
+
+			decode();
+
+			if (traceDisassemble)
+				print();
+
+			execute();
+			writeBack();
+
+			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+				if (Lib.test(dbgFullDisassemble)) {
+					System.out.print("#0x" + Lib.toHexString((int) dst));
+					if (test(Mips.DELAYEDLOAD))
+						System.out.print(" (delayed load)");
+				}
+			}
+
+			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+					|| Lib.test(dbgFullDisassemble))
+				System.out.print("\n");
+		}
+
+		/**
+		 * Execute an instruction that has already been fetched and decoded,
+		 * at the current PC.
+		 * 
+		 * @param info the decoded instruction.
+		 */
+		public void run(Predecoded info) throws MipsException {
+			decode(info);
+			execute();
+			writeBack();
+		}
+
+		private boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
+
+		private void fetch() throws MipsException {
+			paddr = translateFetch(registers[regPC]);
+			value = readPhysMem(paddr, 4);
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			decode(lookupPredecoded(paddr, value));
+		}
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+		private void decode(Predecoded info) {
+			op = info.op;
+			rs = info.rs;
+			rt = info.rt;
+			rd = info.rd;
+			sh = info.sh;
+			func = info.func;
+			target = info.target;
+			imm = info.imm;
 
 			operation = info.operation;
 			name = info.name;
 			format = info.format;
 			flags = info.flags;
+			size = info.size;
+			dstReg = info.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -710,11 +1026,6 @@ public final class Processor {
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -734,9 +1045,6 @@ public final class Processor {
 				src1 &= 0xFFFFFFFFL;
 				src2 &= 0xFFFFFFFFL;
 			}
-
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-				print();
 		}
 
 		private void print() {
@@ -1050,27 +1358,15 @@ public final class Processor {
 			if (test(Mips.DST) && dstReg != 0)
 				registers[dstReg] = (int) dst;
 
-			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-				if (Lib.test(dbgFullDisassemble)) {
-					System.out.print("#0x" + Lib.toHexString((int) dst));
-					if (test(Mips.DELAYEDLOAD))
-						System.out.print(" (delayed load)");
-				}
-			}
-
 			if (test(Mips.BRANCH) && branch) {
 				nextPC = jtarget;
 			}
 
 			advancePC(nextPC);
-
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
-				System.out.print("\n");
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1087,6 +1383,588 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * Return the predecoded form of the instruction word <i>value</i>, which
+	 * was fetched from physical address <i>paddr</i>. Decoded instructions are
+	 * cached per physical page and tagged with the raw instruction word, so an
+	 * entry is reused only while the word in memory is unchanged. This makes
+	 * the cache immune to the kernel rewriting or remapping a frame behind
+	 * the processor's back (loading a COFF page, swapping a page in, or
+	 * copying into user memory), without having to track every such write.
+	 * 
+	 * @param paddr the physical address the instruction was fetched from.
+	 * @param value the instruction word at that address.
+	 * @return the decoded instruction.
+	 */
+	private Predecoded lookupPredecoded(int paddr, int value) {
+		Predecoded[] page = predecoded[paddr / pageSize];
+		if (page == null) {
+			page = new Predecoded[pageSize / 4];
+			predecoded[paddr / pageSize] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+		Predecoded info = page[index];
+		if (info == null || info.value != value) {
+			info = new Predecoded(value);
+			page[index] = info;
+		}
+
+		return info;
+	}
+
+	/**
+	 * The parts of a decoded instruction that depend only on the instruction
+	 * word, and not on the contents of any register.
+	 */
+	private static class Predecoded {
+		Predecoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm = Lib.extract(value, 0, 16);
+			else
+				imm = Lib.extend(value, 0, 16);
+		}
+
+		final int value, op, rs, rt, rd, sh, func, target, imm;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg;
+	}
+
+	/**
+	 * Try to execute a translated block starting at the current PC, instead
+	 * of interpreting a single instruction. A block is run only if the PC is
+	 * not in a branch delay slot and no pending interrupt can come due before
+	 * the block's last instruction, so interrupts are delivered at exactly the
+	 * same instruction boundaries as they are by the interpreter. The ticks of
+	 * all but the last instruction are charged here; the caller charges the
+	 * last one, as it does after an interpreted instruction.
+	 * 
+	 * @return <tt>true</tt> if a block was run, or <tt>false</tt> if the
+	 * caller should interpret one instruction instead.
+	 * @exception MipsException if an instruction in the block caused an
+	 * exception. The registers then reflect every instruction before it.
+	 */
+	private boolean runBlock() throws MipsException {
+		int pc = registers[regPC];
+		if (registers[regNextPC] != pc + 4)
+			return false;
+
+		Block block = lookupBlock(pc, translateFetch(pc));
+		if (block.ops.length == 0
+				|| block.ops.length > privilege.interrupt
+						.timeUntilNextInterrupt())
+			return false;
+
+		block.run();
+		return true;
+	}
+
+	/**
+	 * Return the translated block starting at virtual address <i>pc</i>, which
+	 * maps to physical address <i>paddr</i>, translating it if there is no
+	 * up-to-date block there.
+	 * 
+	 * @param pc the virtual address of the first instruction.
+	 * @param paddr the physical address of the first instruction.
+	 * @return the translated block.
+	 */
+	private Block lookupBlock(int pc, int paddr) {
+		Block[] page = blocks[paddr / pageSize];
+		if (page == null) {
+			page = new Block[pageSize / 4];
+			blocks[paddr / pageSize] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+		Block block = page[index];
+		if (block == null || block.pc != pc || !block.matches()) {
+			block = new Block(pc, paddr);
+			page[index] = block;
+		}
+
+		return block;
+	}
+
+	/**
+	 * Test whether an instruction may be placed in a translated block.
+	 * Invalid and unimplemented instructions are always left to the
+	 * interpreter.
+	 */
+	private static boolean isTranslatable(Predecoded info) {
+		return info.operation != Mips.INVALID
+				&& info.operation != Mips.UNIMPL;
+	}
+
+	/**
+	 * Translate a single instruction into a <tt>BlockOp</tt>. Common
+	 * operations get a specialised op; anything else (multiply, divide,
+	 * operations that trap on overflow, unaligned loads and stores, syscall)
+	 * is run through the interpreter's execute and write-back stages.
+	 * 
+	 * @param info the decoded instruction.
+	 * @param pc the virtual address of the instruction.
+	 * @return the translated instruction.
+	 */
+	private BlockOp newBlockOp(Predecoded info, int pc) {
+		if (Lib.test(Mips.BRANCH, info.flags))
+			return new BranchOp(info, pc);
+
+		if (Lib.test(Mips.OVERFLOW, info.flags))
+			return new GenericOp(info, pc);
+
+		final boolean unsigned = Lib.test(Mips.UNSIGNED, info.flags);
+
+		switch (info.operation) {
+		case Mips.ADD:
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return src1 + src2;
+				}
+			};
+		case Mips.SUB:
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return src1 - src2;
+				}
+			};
+		case Mips.AND:
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return src1 & src2;
+				}
+			};
+		case Mips.OR:
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return src1 | src2;
+				}
+			};
+		case Mips.XOR:
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return src1 ^ src2;
+				}
+			};
+		case Mips.NOR:
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return ~(src1 | src2);
+				}
+			};
+		case Mips.LUI:
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return src2 << 16;
+				}
+			};
+		case Mips.SLT:
+			if (unsigned) {
+				return new AluOp(info) {
+					int compute(int src1, int src2) {
+						return ((src1 & 0xFFFFFFFFL) < (src2 & 0xFFFFFFFFL)) ? 1
+								: 0;
+					}
+				};
+			}
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return (src1 < src2) ? 1 : 0;
+				}
+			};
+		case Mips.SLL:
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return src2 << (src1 & 0x1F);
+				}
+			};
+		case Mips.SRA:
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return src2 >> (src1 & 0x1F);
+				}
+			};
+		case Mips.SRL:
+			// same widening as the interpreter, which shifts a long
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return (int) (((long) src2) >>> (src1 & 0x1F));
+				}
+			};
+		case Mips.MFLO:
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return registers[regLo];
+				}
+			};
+		case Mips.MFHI:
+			return new AluOp(info) {
+				int compute(int src1, int src2) {
+					return registers[regHi];
+				}
+			};
+		case Mips.LOAD:
+			return new LoadOp(info);
+		case Mips.STORE:
+			return new StoreOp(info);
+		default:
+			return new GenericOp(info, pc);
+		}
+	}
+
+	/**
+	 * A straight-line run of instructions, optionally ending in a branch and
+	 * its delay slot, translated into <tt>BlockOp</tt>s. A block never
+	 * crosses a page boundary, so the whole block is covered by the
+	 * translation of its first instruction. Like predecoded instructions,
+	 * a block remembers the instruction words it was built from and is
+	 * rebuilt if any of them change.
+	 */
+	private class Block {
+		Block(int pc, int paddr) {
+			this.pc = pc;
+			this.paddr = paddr;
+
+			BlockOp[] ops = new BlockOp[maxBlockLength];
+			int length = 0;
+			int end = (paddr / pageSize + 1) * pageSize;
+
+			for (int a = paddr; a < end && length < maxBlockLength; a += 4) {
+				Predecoded info = lookupPredecoded(a,
+						Lib.bytesToInt(mainMemory, a, 4));
+				if (!isTranslatable(info))
+					break;
+
+				if (Lib.test(Mips.BRANCH, info.flags)) {
+					// leave awkward delay slots to the interpreter
+					if (a + 4 >= end || length + 2 > maxBlockLength)
+						break;
+
+					Predecoded slot = lookupPredecoded(a + 4,
+							Lib.bytesToInt(mainMemory, a + 4, 4));
+					if (!isTranslatable(slot)
+							|| Lib.test(Mips.BRANCH, slot.flags))
+						break;
+
+					branchIndex = length;
+					ops[length++] = newBlockOp(info, pc + (a - paddr));
+					ops[length++] = newBlockOp(slot, pc + (a - paddr) + 4);
+					break;
+				}
+
+				ops[length++] = newBlockOp(info, pc + (a - paddr));
+
+				if (info.operation == Mips.SYSCALL)
+					break;
+			}
+
+			this.ops = new BlockOp[length];
+			System.arraycopy(ops, 0, this.ops, 0, length);
+
+			words = new int[length];
+			for (int i = 0; i < length; i++)
+				words[i] = Lib.bytesToInt(mainMemory, paddr + i * 4, 4);
+		}
+
+		/**
+		 * Test whether memory still holds the instructions this block was
+		 * translated from.
+		 */
+		boolean matches() {
+			for (int i = 0; i < words.length; i++) {
+				if (Lib.bytesToInt(mainMemory, paddr + i * 4, 4) != words[i])
+					return false;
+			}
+
+			return true;
+		}
+
+		void run() throws MipsException {
+			blockPage = paddr / pageSize;
+			blockPageWritten = false;
+
+			int executed = 0;
+
+			try {
+				while (executed < ops.length) {
+					ops[executed].run();
+					executed++;
+
+					// a store hit this page; the rest of the block may be stale
+					if (blockPageWritten) {
+						blocks[blockPage][(paddr % pageSize) / 4] = null;
+						break;
+					}
+				}
+			}
+			catch (MipsException e) {
+				finish(executed);
+				if (executed > 0)
+					privilege.interrupt.tick(false, executed);
+				throw e;
+			}
+
+			finish(executed);
+			if (executed > 1)
+				privilege.interrupt.tick(false, executed - 1);
+		}
+
+		/**
+		 * Set the PC and nextPC registers to the state the interpreter would
+		 * be in after executing the first <i>executed</i> instructions of
+		 * this block.
+		 */
+		private void finish(int executed) {
+			blockPage = -1;
+
+			if (branchIndex < 0 || executed <= branchIndex) {
+				registers[regPC] = pc + executed * 4;
+				registers[regNextPC] = pc + executed * 4 + 4;
+			}
+			else if (executed == branchIndex + 1) {
+				// stopped in the delay slot
+				registers[regPC] = pc + executed * 4;
+				registers[regNextPC] = blockBranchTarget;
+			}
+			else {
+				registers[regPC] = blockBranchTarget;
+				registers[regNextPC] = blockBranchTarget + 4;
+			}
+		}
+
+		final int pc, paddr;
+
+		final BlockOp[] ops;
+
+		final int[] words;
+
+		int branchIndex = -1;
+	}
+
+	/**
+	 * One instruction of a translated block. A <tt>BlockOp</tt> performs the
+	 * execute and write-back stages of its instruction, including completing
+	 * any delayed load, but does not touch the PC registers; the enclosing
+	 * <tt>Block</tt> sets those when it exits.
+	 */
+	private abstract class BlockOp {
+		abstract void run() throws MipsException;
+	}
+
+	/**
+	 * An ALU operation that writes a destination register and cannot raise
+	 * an exception.
+	 */
+	private abstract class AluOp extends BlockOp {
+		AluOp(Predecoded info) {
+			rs = info.rs;
+			rt = info.rt;
+			sh = info.sh;
+			imm = info.imm;
+			dstReg = info.dstReg;
+			src1Shift = Lib.test(Mips.SRC1SH, info.flags);
+			src2Imm = Lib.test(Mips.SRC2IMM, info.flags);
+		}
+
+		abstract int compute(int src1, int src2);
+
+		void run() {
+			int result = compute(src1Shift ? sh : registers[rs],
+					src2Imm ? imm : registers[rt]);
+
+			finishLoad();
+			if (dstReg != 0)
+				registers[dstReg] = result;
+		}
+
+		final int rs, rt, sh, imm, dstReg;
+
+		final boolean src1Shift, src2Imm;
+	}
+
+	private class LoadOp extends BlockOp {
+		LoadOp(Predecoded info) {
+			rs = info.rs;
+			imm = info.imm;
+			size = info.size;
+			dstReg = info.dstReg;
+			unsigned = Lib.test(Mips.UNSIGNED, info.flags);
+		}
+
+		void run() throws MipsException {
+			int value = Lib.bytesToInt(mainMemory,
+					translate(registers[rs] + imm, size, false), size);
+
+			if (!unsigned)
+				value = Lib.extend(value, 0, size * 8);
+
+			delayedLoad(dstReg, value, 0xFFFFFFFF);
+		}
+
+		final int rs, imm, size, dstReg;
+
+		final boolean unsigned;
+	}
+
+	private class StoreOp extends BlockOp {
+		StoreOp(Predecoded info) {
+			rs = info.rs;
+			rt = info.rt;
+			imm = info.imm;
+			size = info.size;
+		}
+
+		void run() throws MipsException {
+			int value = registers[rt];
+			int paddr = translate(registers[rs] + imm, size, true);
+			Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+			if (paddr / pageSize == blockPage)
+				blockPageWritten = true;
+
+			finishLoad();
+		}
+
+		final int rs, rt, imm, size;
+	}
+
+	/**
+	 * A branch or jump. Records where execution continues after the delay
+	 * slot in <tt>blockBranchTarget</tt>.
+	 */
+	private class BranchOp extends BlockOp {
+		BranchOp(Predecoded info, int pc) {
+			operation = info.operation;
+			rs = info.rs;
+			rt = info.rt;
+			link = Lib.test(Mips.LINK, info.flags);
+			dstReg = info.dstReg;
+			returnAddress = pc + 8;
+
+			registerTarget = (info.format == Mips.RFMT);
+			if (info.format == Mips.JFMT)
+				target = ((pc + 4) & 0xF0000000) | (info.target << 2);
+			else
+				target = pc + 4 + (info.imm << 2);
+		}
+
+		void run() {
+			int src1 = registers[rs];
+			int src2 = registers[rt];
+			boolean taken;
+
+			switch (operation) {
+			case Mips.BEQ:
+				taken = (src1 == src2);
+				break;
+			case Mips.BNE:
+				taken = (src1 != src2);
+				break;
+			case Mips.BGEZ:
+				taken = (src1 >= 0);
+				break;
+			case Mips.BGTZ:
+				taken = (src1 > 0);
+				break;
+			case Mips.BLEZ:
+				taken = (src1 <= 0);
+				break;
+			case Mips.BLTZ:
+				taken = (src1 < 0);
+				break;
+			default:
+				taken = true;
+				break;
+			}
+
+			if (taken)
+				blockBranchTarget = registerTarget ? src1 : target;
+			else
+				blockBranchTarget = returnAddress;
+
+			finishLoad();
+			if (link && dstReg != 0)
+				registers[dstReg] = returnAddress;
+		}
+
+		final int operation, rs, rt, dstReg, target, returnAddress;
+
+		final boolean link, registerTarget;
+	}
+
+	/**
+	 * Any other instruction, run through the interpreter with the PC
+	 * registers set up as they would be if it had been fetched normally.
+	 */
+	private class GenericOp extends BlockOp {
+		GenericOp(Predecoded info, int pc) {
+			this.info = info;
+			this.pc = pc;
+		}
+
+		void run() throws MipsException {
+			registers[regPC] = pc;
+			registers[regNextPC] = pc + 4;
+			blockInstruction.run(info);
+		}
+
+		final Predecoded info;
+
+		final int pc;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
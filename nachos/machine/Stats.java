@@ -21,14 +21,19 @@ public final class Stats {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
 				+ kernelTicks + ", user " + userTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
-				+ numDiskWrites);
+				+ numDiskWrites + ", cache hits " + numCacheHits
+				+ ", misses " + numCacheMisses);
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
-			        + ", swap writes " + numSwapWrites);
+			        + ", swap writes " + numSwapWrites
+				+ ", prefetch hits " + numPrefetchHits
+				+ ", misses " + numPrefetchMisses);
+		System.out.println("Replacement: hits " + numPageHits
+				+ ", evictions " + numPageEvictions);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
 	}
@@ -54,6 +59,12 @@ public final class Stats {
 	/** The total number of sectors Nachos has written to the simulated disk. */
 	public int numDiskWrites = 0;
 
+	/** The total number of file blocks found in the buffer cache. */
+	public int numCacheHits = 0;
+
+	/** The total number of file blocks not found in the buffer cache. */
+	public int numCacheMisses = 0;
+
 	/** The total number of characters Nachos has read from the console. */
 	public int numConsoleReads = 0;
 
@@ -69,12 +80,32 @@ public final class Stats {
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
 
-        /** The total number of pages read from swap. */
+        /**
+         * The total number of page faults that read swap. Pages read ahead in
+         * the same read are counted by <tt>numPrefetchHits</tt> or
+         * <tt>numPrefetchMisses</tt> instead.
+         */
         public int numSwapReads = 0;
 
         /** The total number of pages written to swap. */
         public int numSwapWrites = 0;
 
+        /** The total number of faults satisfied by a page read ahead from swap. */
+        public int numPrefetchHits = 0;
+
+        /** The total number of pages read ahead from swap but never used. */
+        public int numPrefetchMisses = 0;
+
+        /**
+         * The total number of times page replacement found a resident page had
+         * been referenced since it last looked, or faulted in a page it still
+         * remembered having evicted.
+         */
+        public int numPageHits = 0;
+
+        /** The total number of pages evicted to free a frame. */
+        public int numPageEvictions = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -39,6 +41,51 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+		stackSize = Config.getInteger("TCB.stackSize", 0);
+
+		if (Config.getBoolean("TCB.virtualThreads", false))
+			findVirtualThreadBuilder();
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual()</tt> by reflection, so that Nachos still
+	 * builds and runs on JVMs without virtual threads; on those, TCBs keep
+	 * using platform threads.
+	 */
+	private static void findVirtualThreadBuilder() {
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					virtualThreadBuilder = Thread.class.getMethod("ofVirtual")
+							.invoke(null);
+					newVirtualThread = Class.forName("java.lang.Thread$Builder")
+							.getMethod("unstarted", Runnable.class);
+				}
+				catch (Exception e) {
+					virtualThreadBuilder = null;
+					newVirtualThread = null;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Create the Java thread for a TCB. Must be called with privilege.
+	 */
+	private static Thread newJavaThread(Runnable target) {
+		if (newVirtualThread != null) {
+			try {
+				return (Thread) newVirtualThread.invoke(virtualThreadBuilder,
+						target);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("cannot create virtual thread: " + e);
+			}
+		}
+
+		return new Thread(null, target, "TCB", stackSize);
 	}
 
 	/**
@@ -68,7 +115,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(threadLimit <= 0 || runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +149,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newJavaThread(tcbTarget);
 				}
 			});
 
@@ -297,15 +344,14 @@ public final class TCB {
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * Parking rather than waiting on a monitor makes the hand-off cheaper, and
+	 * lets a virtual thread release its carrier while it waits.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
@@ -314,9 +360,9 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -341,11 +387,31 @@ public final class TCB {
 	}
 
 	/**
-	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * The default maximum number of started, non-destroyed TCB's that can be
+	 * in existence. The limit can be changed with <tt>TCB.maxThreads</tt>; 0
+	 * means no limit.
 	 */
 	public static final int maxThreads = 250;
 
+	/** The maximum number of TCB's in effect, from the config file. */
+	private static int threadLimit = maxThreads;
+
+	/**
+	 * The stack size requested for the platform threads behind TCB's, from
+	 * <tt>TCB.stackSize</tt>; 0 uses the JVM default. Small stacks allow many
+	 * more kernel threads.
+	 */
+	private static long stackSize = 0;
+
+	/**
+	 * If <tt>TCB.virtualThreads</tt> is set and the JVM supports them, the
+	 * <tt>Thread.Builder</tt> used to create virtual threads and its
+	 * <tt>unstarted()</tt> method; otherwise <tt>null</tt>.
+	 */
+	private static Object virtualThreadBuilder = null;
+
+	private static Method newVirtualThread = null;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -403,7 +469,7 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
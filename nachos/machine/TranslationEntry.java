@@ -48,6 +48,7 @@ public final class TranslationEntry {
 		readOnly = entry.readOnly;
 		used = entry.used;
 		dirty = entry.dirty;
+		asid = entry.asid;
 	}
 
 	/** The virtual page number. */
@@ -78,4 +79,12 @@ public final class TranslationEntry {
 	 * user program.
 	 */
 	public boolean dirty;
+
+	/**
+	 * The address space this translation belongs to. Only TLB entries are
+	 * tagged; a TLB entry matches only while the processor's current ASID (see
+	 * <tt>Processor.setASID()</tt>) equals this value. Page table entries ignore
+	 * this field.
+	 */
+	public int asid = 0;
 }
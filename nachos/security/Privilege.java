@@ -146,8 +146,18 @@ public abstract class Privilege {
 		 * @param when the number of ticks until the interrupt should occur.
 		 * @param type a name for the type of interrupt being scheduled.
 		 * @param handler the interrupt handler to call.
+		 * @return an id that can be passed to <tt>cancel()</tt>.
 		 */
-		public void schedule(long when, String type, Runnable handler);
+		public long schedule(long when, String type, Runnable handler);
+
+		/**
+		 * Cancel an interrupt scheduled by <tt>schedule()</tt>, if it has not
+		 * occurred yet.
+		 * 
+		 * @param id the id returned by <tt>schedule()</tt>.
+		 * @return <tt>true</tt> if the interrupt was still pending.
+		 */
+		public boolean cancel(long id);
 
 		/**
 		 * Advance the simulated time.
@@ -157,6 +167,27 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by <i>count</i> ticks at once, checking
+		 * for due interrupts only at the end. Equivalent to <i>count</i>
+		 * calls to <tt>tick()</tt> provided no interrupt comes due before
+		 * the last of them.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the current thread is running
+		 * kernel code, <tt>false</tt> if the current thread is running MIPS
+		 * user code.
+		 * @param count the number of ticks to advance.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the number of ticks until the earliest pending interrupt is
+		 * due, or <tt>Long.MAX_VALUE</tt> if no interrupt is pending.
+		 * 
+		 * @return the number of ticks until the next interrupt.
+		 */
+		public long timeUntilNextInterrupt();
 	}
 
 	/**
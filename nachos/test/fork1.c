@@ -0,0 +1,54 @@
+/*
+ * fork1.c
+ *
+ * Simple program for testing fork.  The parent and the child each
+ * write the same global after the fork, and each checks that it still
+ * sees its own value: memory is shared only until one of them writes.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+int shared = 1;
+
+int
+main (int argc, char *argv[])
+{
+    int pid, r, status = 0;
+
+    printf ("forking...\n");
+    pid = fork ();
+    if (pid < 0) {
+	printf ("...failed (pid = %d)\n", pid);
+	exit (-1);
+    }
+
+    if (pid == 0) {
+	// the child starts with the parent's copy
+	if (shared != 1) {
+	    exit (-1);
+	}
+	shared = 2;
+	// the exit status of the child is its view of the global
+	exit (shared);
+    }
+
+    printf ("...passed (child = %d)\n", pid);
+
+    printf ("joining %d...\n", pid);
+    r = join (pid, &status);
+    if (r != 1 || status != 2) {
+	printf ("...failed (r = %d, status from child = %d)\n", r, status);
+	exit (-1);
+    }
+    printf ("...passed (status from child = %d)\n", status);
+
+    // the child's write must not be visible to the parent
+    if (shared != 1) {
+	printf ("parent sees the child's write (shared = %d)\n", shared);
+	exit (-1);
+    }
+    printf ("parent and child kept their own copies\n");
+
+    return 0;
+}
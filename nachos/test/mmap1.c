@@ -0,0 +1,99 @@
+/*
+ * mmap1.c
+ *
+ * Simple program for testing mmap.  Writes a file that spans two pages,
+ * maps it, checks the mapped bytes and the zeroes past the end of the
+ * file, writes through the mapping, and after munmap reads the file back
+ * to check that the writes reached it.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define PAGESIZE 1024
+#define FILESIZE 1500
+
+char *file = "mmap1.dat";
+char buf[FILESIZE];
+
+char
+expected (int i)
+{
+    return 'a' + i % 26;
+}
+
+int
+main (int argc, char *argv[])
+{
+    char *map;
+    int fd, i, r;
+
+    for (i = 0; i < FILESIZE; i++) {
+	buf[i] = expected (i);
+    }
+    fd = creat (file);
+    if (fd < 0 || write (fd, buf, FILESIZE) != FILESIZE) {
+	printf ("failed to write %s\n", file);
+	exit (-1);
+    }
+
+    printf ("mapping %s...\n", file);
+    map = mmap (fd, 0, FILESIZE);
+    if (map == 0) {
+	printf ("...failed\n");
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    // the mapping keeps its own handle on the file
+    close (fd);
+
+    for (i = 0; i < FILESIZE; i++) {
+	if (map[i] != expected (i)) {
+	    printf ("map[%d] = %d, expected %d\n", i, map[i], expected (i));
+	    exit (-1);
+	}
+    }
+    for (i = FILESIZE; i < 2 * PAGESIZE; i++) {
+	if (map[i] != 0) {
+	    printf ("map[%d] = %d past the end of the file\n", i, map[i]);
+	    exit (-1);
+	}
+    }
+    printf ("read %d bytes through the mapping\n", FILESIZE);
+
+    // dirty one byte on each page
+    map[0] = 'X';
+    map[PAGESIZE + 1] = 'Y';
+
+    r = munmap (map);
+    if (r != 0) {
+	printf ("munmap failed (r = %d)\n", r);
+	exit (-1);
+    }
+
+    fd = open (file);
+    if (fd < 0 || read (fd, buf, FILESIZE) != FILESIZE) {
+	printf ("failed to read back %s\n", file);
+	exit (-1);
+    }
+    close (fd);
+    unlink (file);
+
+    for (i = 0; i < FILESIZE; i++) {
+	char c = expected (i);
+	if (i == 0) {
+	    c = 'X';
+	} else if (i == PAGESIZE + 1) {
+	    c = 'Y';
+	}
+	if (buf[i] != c) {
+	    printf ("byte %d of %s = %d, expected %d\n", i, file, buf[i], c);
+	    exit (-1);
+	}
+    }
+    printf ("writes through the mapping reached the file\n");
+
+    return 0;
+}
@@ -0,0 +1,70 @@
+/*
+ * pread1.c
+ *
+ * Simple program for testing pread and pwrite.  Reads and writes in the
+ * middle of a file at explicit positions, and checks that neither call
+ * moves the file position used by read.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+char *file = "pread1.dat";
+char buf[16];
+
+int
+main (int argc, char *argv[])
+{
+    int fd, r;
+
+    fd = creat (file);
+    if (fd < 0 || write (fd, "0123456789", 10) != 10) {
+	printf ("failed to write %s\n", file);
+	exit (-1);
+    }
+    close (fd);
+
+    fd = open (file);
+    if (fd < 0) {
+	printf ("failed to open %s\n", file);
+	exit (-1);
+    }
+
+    printf ("reading 4 bytes at position 3...\n");
+    r = pread (fd, buf, 4, 3);
+    if (r != 4 || strncmp (buf, "3456", 4) != 0) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    printf ("writing 2 bytes at position 8...\n");
+    r = pwrite (fd, "ab", 2, 8);
+    if (r != 2) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    printf ("reading past the end of the file...\n");
+    r = pread (fd, buf, sizeof (buf), 6);
+    if (r != 4 || strncmp (buf, "67ab", 4) != 0) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    // the file position is still at the start
+    printf ("reading from the file position...\n");
+    r = read (fd, buf, 10);
+    close (fd);
+    unlink (file);
+    if (r != 10 || strncmp (buf, "01234567ab", 10) != 0) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    return 0;
+}
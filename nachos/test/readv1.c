@@ -0,0 +1,72 @@
+/*
+ * readv1.c
+ *
+ * Simple program for testing readv and writev.  Writes a file from three
+ * buffers with one writev, then reads it back with one readv into two
+ * buffers split at a different place.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+char *file = "readv1.dat";
+char *parts[] = { "roses are red\n", "violets are blue\n", "I love Nachos\n" };
+char *whole = "roses are red\nviolets are blue\nI love Nachos\n";
+
+char first[20], second[40];
+
+int
+main (int argc, char *argv[])
+{
+    struct iovec iov[3];
+    int fd, i, r, total = 0;
+
+    for (i = 0; i < 3; i++) {
+	iov[i].iov_base = parts[i];
+	iov[i].iov_len = strlen (parts[i]);
+	total += iov[i].iov_len;
+    }
+
+    fd = creat (file);
+    if (fd < 0) {
+	printf ("failed to create %s\n", file);
+	exit (-1);
+    }
+    printf ("writing %d bytes from 3 buffers...\n", total);
+    r = writev (fd, iov, 3);
+    close (fd);
+    if (r != total) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    iov[0].iov_base = first;
+    iov[0].iov_len = sizeof (first);
+    iov[1].iov_base = second;
+    iov[1].iov_len = sizeof (second);
+
+    fd = open (file);
+    if (fd < 0) {
+	printf ("failed to open %s\n", file);
+	exit (-1);
+    }
+    printf ("reading them back into 2 buffers...\n");
+    r = readv (fd, iov, 2);
+    close (fd);
+    unlink (file);
+    // the file is shorter than the buffers, so readv stops at its end
+    if (r != total) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+    if (strncmp (first, whole, sizeof (first)) != 0
+	|| strncmp (second, whole + sizeof (first), total - sizeof (first)) != 0) {
+	printf ("...failed (wrong bytes)\n");
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    return 0;
+}
@@ -0,0 +1,111 @@
+/*
+ * ring1.c
+ *
+ * Simple program for testing the asynchronous syscall ring.  Pushes more
+ * writes, and then more reads, through a small ring than it has entries,
+ * queueing new entries as completions are reaped, and checks every
+ * result.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define RING 4
+#define COUNT 10
+
+struct io_ring {
+    int sq_head, sq_tail, cq_head, cq_tail;
+    struct io_sqe sqes[RING];
+    struct io_cqe cqes[RING];
+};
+
+struct io_ring ring;
+
+char *file = "ring1.dat";
+char *digits = "0123456789";
+char bytes[COUNT];
+
+/*
+ * Move byte i of the file at position i with one entry per byte, keeping
+ * no more entries in flight than the completion queue can hold.
+ */
+void
+run (int opcode, int fd, char *buf)
+{
+    int submitted = 0, reaped = 0, seen[COUNT];
+    int i;
+
+    for (i = 0; i < COUNT; i++) {
+	seen[i] = 0;
+    }
+
+    while (reaped < COUNT) {
+	while (submitted < COUNT && submitted - reaped < RING) {
+	    struct io_sqe *sqe = &ring.sqes[ring.sq_tail % RING];
+	    sqe->opcode = opcode;
+	    sqe->fd = fd;
+	    sqe->addr = buf + submitted;
+	    sqe->len = 1;
+	    sqe->pos = submitted;
+	    sqe->user_data = submitted;
+	    ring.sq_tail++;
+	    submitted++;
+	}
+
+	if (ringEnter (ring.sq_tail - ring.sq_head, 1) < 0) {
+	    printf ("ringEnter failed\n");
+	    exit (-1);
+	}
+
+	while (ring.cq_head != ring.cq_tail) {
+	    struct io_cqe *cqe = &ring.cqes[ring.cq_head % RING];
+	    if (cqe->user_data < 0 || cqe->user_data >= COUNT
+		|| seen[cqe->user_data] || cqe->res != 1) {
+		printf ("bad completion (user_data = %d, res = %d)\n",
+			cqe->user_data, cqe->res);
+		exit (-1);
+	    }
+	    seen[cqe->user_data] = 1;
+	    ring.cq_head++;
+	    reaped++;
+	}
+    }
+}
+
+int
+main (int argc, char *argv[])
+{
+    int fd, i;
+
+    fd = creat (file);
+    if (fd < 0) {
+	printf ("failed to create %s\n", file);
+	exit (-1);
+    }
+
+    printf ("setting up a ring of %d entries...\n", RING);
+    if (ringSetup (&ring, RING) != 0) {
+	printf ("...failed\n");
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    printf ("writing %d bytes, one entry each...\n", COUNT);
+    run (IO_OP_WRITE, fd, digits);
+    printf ("...passed\n");
+
+    printf ("reading %d bytes, one entry each...\n", COUNT);
+    run (IO_OP_READ, fd, bytes);
+    close (fd);
+    unlink (file);
+    for (i = 0; i < COUNT; i++) {
+	if (bytes[i] != digits[i]) {
+	    printf ("...failed (byte %d = %d)\n", i, bytes[i]);
+	    exit (-1);
+	}
+    }
+    printf ("...passed\n");
+
+    return 0;
+}
@@ -67,3 +67,11 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(pread, syscallPread)
+	SYSCALLSTUB(pwrite, syscallPwrite)
+	SYSCALLSTUB(ringSetup, syscallRingSetup)
+	SYSCALLSTUB(ringEnter, syscallRingEnter)
@@ -25,6 +25,14 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallMunmap		14
+#define syscallReadv		15
+#define syscallWritev		16
+#define syscallPread		17
+#define syscallPwrite		18
+#define syscallRingSetup	19
+#define syscallRingEnter	20
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +61,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -109,7 +117,22 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
-/* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
+/**
+ * Create a child process that is a copy of the current process. The child has
+ * a new unique process ID, a copy of the parent's memory, and its own copy of
+ * each open file descriptor, at the same position. Both processes continue
+ * from the return of fork().
+ *
+ * Memory is copied lazily: both processes share each page until one of them
+ * writes it.
+ *
+ * fork() returns the child's process ID in the parent, which can be passed to
+ * join(), and 0 in the child. On error, returns -1 and no child is created.
+ */
+int fork();
+
+/* FILE MANAGEMENT SYSCALLS: creat, open, read, write, readv, writev, pread,
+ * pwrite, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
  * disk or to a stream (such as console input, console output, and network
@@ -181,6 +204,56 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * One buffer of a readv() or writev() call.
+ */
+struct iovec {
+    void *iov_base;	/* the first byte of the buffer */
+    int iov_len;	/* the number of bytes in the buffer */
+};
+
+/* The most buffers readv() and writev() accept in one call. */
+#define IOV_MAX		64
+
+/**
+ * Like read(), but fill the iovcnt buffers described by iov in order, as if
+ * by one read() into a single buffer. Stops early at the end of the file, or
+ * when a stream has no more bytes available right now.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred before
+ * any were. It is an error if iovcnt is negative or larger than IOV_MAX.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but write the iovcnt buffers described by iov in order, as if
+ * by one write() from a single buffer.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred
+ * before any were. It is an error if iovcnt is negative or larger than
+ * IOV_MAX.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like read(), but read from the file on disk starting at position, without
+ * using or changing the file position.
+ *
+ * Returns the number of bytes read, which is smaller than count only at the
+ * end of the file, or -1 if an error occurred. It is an error if
+ * fileDescriptor refers to a stream or if position is negative.
+ */
+int pread(int fileDescriptor, void *buffer, int count, int position);
+
+/**
+ * Like write(), but write to the file on disk starting at position, without
+ * using or changing the file position.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred. It is an
+ * error if fileDescriptor refers to a stream or if position is negative.
+ */
+int pwrite(int fileDescriptor, void *buffer, int count, int position);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or
  * stream and may be reused. The resources associated with the file
@@ -203,19 +276,105 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/* ASYNCHRONOUS I/O SYSCALLS: ringSetup, ringEnter
+ *
+ * A process can queue file operations in a ring in its own memory and hand
+ * any number of them to the kernel with one ringEnter() call. A kernel
+ * thread carries them out, in order, while the process keeps running, and
+ * their results come back in the same ring.
+ */
+
+/* Operations for io_sqe.opcode. */
+#define IO_OP_READ	0	/* read(fd, addr, len), or at pos if pos >= 0 */
+#define IO_OP_WRITE	1	/* write(fd, addr, len), or at pos if pos >= 0 */
+#define IO_OP_OPEN	2	/* open(addr); fd, len and pos are unused */
+
+/* The most entries a ring may have, and the most bytes one entry moves. */
+#define IO_RING_MAX	64
+#define IO_MAX_TRANSFER	(16 * 1024)
+
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * A submission queue entry: one operation for the kernel to carry out.
+ */
+struct io_sqe {
+    int opcode;		/* one of the IO_OP_ values */
+    int fd;		/* the file descriptor to read or write */
+    void *addr;		/* the buffer, or the name to open */
+    int len;		/* the number of bytes to transfer */
+    int pos;		/* the file position, or -1 for the file pointer */
+    int user_data;	/* copied to the completion */
+};
+
+/**
+ * A completion queue entry: the result of one operation.
+ */
+struct io_cqe {
+    int user_data;	/* from the submission */
+    int res;		/* what the matching syscall would return */
+};
+
+/**
+ * The ring itself, with N entries in each queue. The queues are indexed by
+ * free-running counters taken modulo N. The process fills sqes[sq_tail % N]
+ * and then advances sq_tail; the kernel advances sq_head as it takes
+ * entries. The kernel fills cqes[cq_tail % N] and then advances cq_tail; the
+ * process advances cq_head as it consumes completions.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * struct io_ring {
+ *     int sq_head, sq_tail, cq_head, cq_tail;
+ *     struct io_sqe sqes[N];
+ *     struct io_cqe cqes[N];
+ * };
+ */
+
+/**
+ * Use the ring of entries entries per queue at ring for asynchronous I/O.
+ * entries must be a power of two, at most IO_RING_MAX. The four counters
+ * must be zero. A process has at most one ring, and a child created by
+ * fork() does not inherit it.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int ringSetup(void *ring, int entries);
+
+/**
+ * Submit up to toSubmit entries from the submission queue, wait until at
+ * least minComplete operations have finished, and post the results of all
+ * finished operations that fit in the completion queue.
+ *
+ * Data written is taken from the buffer when the entry is submitted; data
+ * read is stored in the buffer, and a file opened gets its descriptor, when
+ * the completion is posted. A read or write moves at most IO_MAX_TRANSFER
+ * bytes. An invalid entry completes with res set to -1.
+ *
+ * Returns the number of entries submitted, or -1 if the ring could not be
+ * accessed.
+ */
+int ringEnter(int toSubmit, int minComplete);
+
+/**
+ * Map length bytes of the file referenced by fileDescriptor, starting at
+ * offset, into memory. offset must be a multiple of the page size. Pages of
+ * the mapping are read from the file when first touched, and pages that were
+ * written are written back to the file when they are evicted or unmapped.
+ * Bytes past the end of the file read as zeroes; the rest of the last page
+ * after length bytes is never written back.
+ *
+ * The mapping uses its own handle on the file, so it stays valid after
+ * fileDescriptor is closed. It is not inherited by a child created by fork().
+ *
+ * Returns the address of the mapping on success, or 0 if an error occurred.
+ */
+char *mmap(int fileDescriptor, int offset, int length);
+
+/**
+ * Remove the mapping created by mmap() at address, writing its dirty pages
+ * back to the file. Touching the unmapped pages afterwards kills the process.
+ * A process's mappings are removed when it exits.
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns 0 on success, or -1 if address is not the start of a mapping.
  */
-int mmap(int fileDescriptor, char *address);
+int munmap(char *address);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
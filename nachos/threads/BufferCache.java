@@ -0,0 +1,515 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import nachos.machine.*;
+
+/**
+ * A block cache over another file system. Reads are served from memory when
+ * the block is cached, skipping the disk delay and the host I/O; writes only
+ * dirty the cached block. Dirty blocks go to the file system below when their
+ * file is closed, when they are evicted, and on <tt>sync()</tt>.
+ *
+ * <p>
+ * Every open of the same name shares one set of blocks, so all of them see
+ * each other's writes. The least recently used block is evicted when the
+ * cache is full. The size is given in blocks by the <tt>nachos.conf</tt> key
+ * <tt>ThreadedKernel.cacheBlocks</tt>.
+ *
+ * <p>
+ * The lock is never held while the file system below makes a thread wait
+ * for the disk, so hits never queue behind another thread's miss. A block
+ * being read in or written back is marked busy instead, and threads that
+ * need it wait for it. Opens, closes and removes of one name are done one
+ * at a time.
+ */
+public class BufferCache implements FileSystem {
+	/**
+	 * Allocate a new buffer cache.
+	 *
+	 * @param backing the file system to cache.
+	 * @param capacity the number of blocks to hold.
+	 */
+	public BufferCache(FileSystem backing, int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		this.backing = backing;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Return the file system under <i>fileSystem</i>'s cache, if it has one,
+	 * for files such as swap that are cached by their users.
+	 */
+	public static FileSystem uncached(FileSystem fileSystem) {
+		if (fileSystem instanceof BufferCache)
+			return ((BufferCache) fileSystem).backing;
+		return fileSystem;
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+		claim(name);
+		CachedFile file = files.get(name);
+		if (file != null && truncate) {
+			// other handles wait until the host file has been emptied
+			file.truncating = true;
+			waitIdle(file);
+			dropBlocks(file);
+		}
+		boolean shared = file != null && file.refCount > 0;
+
+		OpenFile handle = null;
+		if (!shared || truncate) {
+			lock.release();
+			// the host file must be emptied for the handle already open too
+			handle = backing.open(name, truncate);
+			lock.acquire();
+		}
+
+		CachedOpenFile result = null;
+		if (shared) {
+			if (handle != null) {
+				handle.close();
+				file.length = 0;
+			}
+			if (handle != null || !truncate)
+				result = new CachedOpenFile(file);
+		} else if (handle != null) {
+			if (file == null) {
+				file = new CachedFile(name, nextFileId++);
+				files.put(name, file);
+			}
+			file.handle = handle;
+			file.length = handle.length();
+			result = new CachedOpenFile(file);
+		} else if (file != null) {
+			dropBlocks(file);
+			files.remove(name);
+		}
+		if (result != null) {
+			file.refCount++;
+			openCount++;
+		}
+		if (file != null)
+			file.truncating = false;
+		unclaim(name);
+		lock.release();
+		return result;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	public boolean remove(String name) {
+		lock.acquire();
+		claim(name);
+		CachedFile file = files.remove(name);
+		// files still open keep their blocks until the last close
+		if (file != null && file.refCount == 0)
+			dropBlocks(file);
+		lock.release();
+
+		boolean removed = backing.remove(name);
+
+		lock.acquire();
+		unclaim(name);
+		lock.release();
+		return removed;
+	}
+
+	/**
+	 * Write every dirty block to the file system below.
+	 */
+	public void sync() {
+		lock.acquire();
+		while (true) {
+			CachedFile dirty = null;
+			for (Block block : blocks.values()) {
+				if (block.dirty) {
+					dirty = block.file;
+					break;
+				}
+			}
+			if (dirty == null)
+				break;
+			flush(dirty);
+		}
+		lock.release();
+	}
+
+	/**
+	 * Read from <i>file</i> through the cache. Blocks that must be read in
+	 * come in together with the missing blocks that follow them, up to the
+	 * last block requested plus <i>ahead</i> bytes, in a single read.
+	 */
+	private int read(CachedFile file, int pos, byte[] buf, int offset, int length, int ahead) {
+		if (pos < 0 || length < 0 || ahead < 0)
+			return -1;
+
+		lock.acquire();
+		while (file.truncating)
+			ready.sleep();
+		int end = pos + Math.max(0, Math.min(length, file.length - pos));
+		int last = (Math.min(end + ahead, file.length) - 1) / blockSize;
+		int amount = 0;
+		while (pos < end) {
+			int blockOffset = pos % blockSize;
+			int n = Math.min(blockSize - blockOffset, end - pos);
+			Block block = getBlock(file, pos / blockSize, true, last);
+			if (block == null)
+				break;
+			System.arraycopy(block.data, blockOffset, buf, offset + amount, n);
+			pos += n;
+			amount += n;
+		}
+		lock.release();
+		return (amount == 0 && pos < end) ? -1 : amount;
+	}
+
+	private int write(CachedFile file, int pos, byte[] buf, int offset, int length) {
+		if (pos < 0 || length < 0)
+			return -1;
+
+		lock.acquire();
+		while (file.truncating)
+			ready.sleep();
+		int amount = 0;
+		while (amount < length) {
+			int blockOffset = pos % blockSize;
+			int n = Math.min(blockSize - blockOffset, length - amount);
+			// a block written whole, or past the end of the file, need not be
+			// read first
+			boolean load = n < blockSize && pos - blockOffset < file.length;
+			Block block = getBlock(file, pos / blockSize, load, pos / blockSize);
+			if (block == null)
+				break;
+			System.arraycopy(buf, offset + amount, block.data, blockOffset, n);
+			block.dirty = true;
+			pos += n;
+			amount += n;
+			file.length = Math.max(file.length, pos);
+		}
+		lock.release();
+		return (amount == 0 && length > 0) ? -1 : amount;
+	}
+
+	private void close(CachedFile file) {
+		lock.acquire();
+		claim(file.name);
+		flush(file);
+		openCount--;
+		if (--file.refCount == 0) {
+			file.handle.close();
+			file.handle = null;
+			// a removed file can never be opened again
+			if (files.get(file.name) != file)
+				dropBlocks(file);
+		}
+		unclaim(file.name);
+		lock.release();
+	}
+
+	/**
+	 * Find block <i>number</i> of <i>file</i>, reading it in if
+	 * <i>load</i> is <tt>true</tt> and it is not cached. Missing blocks
+	 * after it, up to block <i>last</i>, are read in by the same read. Called
+	 * with the lock held, which is released while waiting for the disk.
+	 *
+	 * @return the block, or <tt>null</tt> if it could not be read.
+	 */
+	private Block getBlock(CachedFile file, int number, boolean load, int last) {
+		while (true) {
+			Block block = blocks.get(key(file, number));
+			if (block != null && !block.busy) {
+				Machine.incrNumCacheHits();
+				return block;
+			}
+			if (block != null) {
+				// another thread is reading it in or writing it back
+				ready.sleep();
+				continue;
+			}
+
+			// never read in so much that the run evicts itself
+			int count = 1;
+			while (load && number + count <= last && count < Math.max(1, capacity / 2)
+					&& !blocks.containsKey(key(file, number + count)))
+				count++;
+			if (blocks.size() + count > capacity) {
+				// the cache may change while a victim is written back
+				if (!evict())
+					ready.sleep();
+				continue;
+			}
+			Machine.incrNumCacheMisses();
+
+			Block[] run = new Block[count];
+			for (int i = 0; i < count; i++) {
+				run[i] = new Block(file, number + i);
+				run[i].busy = load;
+				blocks.put(key(file, number + i), run[i]);
+			}
+			if (!load)
+				return run[0];
+
+			byte[] buf = new byte[count * blockSize];
+			lock.release();
+			int amount = file.handle.read(number * blockSize, buf, 0, buf.length);
+			lock.acquire();
+			for (int i = 0; i < count; i++) {
+				run[i].busy = false;
+				if (amount == -1)
+					blocks.remove(key(file, number + i));
+				else
+					System.arraycopy(buf, i * blockSize, run[i].data, 0, blockSize);
+			}
+			ready.wakeAll();
+			return (amount == -1) ? null : run[0];
+		}
+	}
+
+	/**
+	 * Evict the least recently used block that is not busy, writing it back
+	 * first if it is dirty. Called with the lock held, which is released
+	 * while writing.
+	 *
+	 * @return <tt>false</tt> if every block is busy.
+	 */
+	private boolean evict() {
+		Block victim = null;
+		for (Block block : blocks.values()) {
+			if (!block.busy) {
+				victim = block;
+				break;
+			}
+		}
+		if (victim == null)
+			return false;
+
+		if (victim.dirty)
+			writeRun(victim.file, Collections.singletonList(victim));
+		blocks.remove(key(victim.file, victim.number), victim);
+		return true;
+	}
+
+	/**
+	 * Write the dirty blocks of <i>file</i> in file order, one write for each
+	 * run of adjacent blocks, after waiting for any of its blocks that are
+	 * busy. Called with the lock held, which is released while writing.
+	 */
+	private void flush(CachedFile file) {
+		while (true) {
+			waitIdle(file);
+			ArrayList<Block> dirty = new ArrayList<Block>();
+			for (Block block : blocks.values()) {
+				if (block.file == file && block.dirty)
+					dirty.add(block);
+			}
+			if (dirty.isEmpty())
+				return;
+			Collections.sort(dirty, new Comparator<Block>() {
+				public int compare(Block a, Block b) {
+					return Integer.compare(a.number, b.number);
+				}
+			});
+
+			// write the first run, then look again, since writing lets other
+			// threads at the cache
+			int end = 1;
+			while (end < dirty.size() && dirty.get(end).number == dirty.get(end - 1).number + 1)
+				end++;
+			writeRun(file, dirty.subList(0, end));
+		}
+	}
+
+	/**
+	 * Write adjacent blocks of <i>file</i> with a single write, stopping at
+	 * the end of the file. The blocks are busy during the write. Called with
+	 * the lock held, which is released while writing.
+	 */
+	private void writeRun(CachedFile file, List<Block> run) {
+		Lib.assertTrue(file.handle != null);
+
+		int pos = run.get(0).number * blockSize;
+		int length = Math.min(run.size() * blockSize, file.length - pos);
+		byte[] buf = new byte[run.size() * blockSize];
+		for (int i = 0; i < run.size(); i++) {
+			System.arraycopy(run.get(i).data, 0, buf, i * blockSize, blockSize);
+			run.get(i).dirty = false;
+			run.get(i).busy = true;
+		}
+		lock.release();
+		if (length > 0)
+			file.handle.write(pos, buf, 0, length);
+		lock.acquire();
+		for (Block block : run)
+			block.busy = false;
+		ready.wakeAll();
+	}
+
+	/**
+	 * Wait until no block of <i>file</i> is busy. Called with the lock held.
+	 */
+	private void waitIdle(CachedFile file) {
+		while (true) {
+			boolean busy = false;
+			for (Block block : blocks.values())
+				busy |= block.file == file && block.busy;
+			if (!busy)
+				return;
+			ready.sleep();
+		}
+	}
+
+	/**
+	 * Wait until no other thread is opening, closing or removing a file
+	 * called <i>name</i>, then claim the name. Called with the lock held.
+	 */
+	private void claim(String name) {
+		while (claimed.contains(name))
+			ready.sleep();
+		claimed.add(name);
+	}
+
+	/**
+	 * Give up a name claimed by <tt>claim()</tt>. Called with the lock held.
+	 */
+	private void unclaim(String name) {
+		claimed.remove(name);
+		ready.wakeAll();
+	}
+
+	private static String key(CachedFile file, int number) {
+		return file.id + "#" + number;
+	}
+
+	/**
+	 * Forget every cached block of <i>file</i>, dirty or not. Called with the
+	 * lock held.
+	 */
+	private void dropBlocks(CachedFile file) {
+		for (Iterator<Block> i = blocks.values().iterator(); i.hasNext();) {
+			if (i.next().file == file)
+				i.remove();
+		}
+	}
+
+	/**
+	 * A file with blocks in the cache. Every open of the same name shares it.
+	 */
+	private static class CachedFile {
+		CachedFile(String name, int id) {
+			this.name = name;
+			this.id = id;
+		}
+
+		String name;
+
+		/** Distinguishes a removed file's blocks from a new file's. */
+		int id;
+
+		/** The file's length, counting writes not yet written back. */
+		int length;
+
+		/** A handle on the file system below, while the file is open. */
+		OpenFile handle;
+
+		/** The number of <tt>CachedOpenFile</tt>s open on this file. */
+		int refCount = 0;
+
+		/** Whether an open is emptying the file on the file system below. */
+		boolean truncating = false;
+	}
+
+	/** One cached block of a file. */
+	private static class Block {
+		Block(CachedFile file, int number) {
+			this.file = file;
+			this.number = number;
+		}
+
+		CachedFile file;
+
+		int number;
+
+		byte[] data = new byte[blockSize];
+
+		boolean dirty = false;
+
+		/** Whether the block is being read in or written back. */
+		boolean busy = false;
+	}
+
+	/**
+	 * A handle on a cached file, with its own file pointer.
+	 */
+	private class CachedOpenFile extends OpenFileWithPosition {
+		CachedOpenFile(CachedFile file) {
+			super(BufferCache.this, file.name);
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			return read(pos, buf, offset, length, 0);
+		}
+
+		protected int read(int pos, byte[] buf, int offset, int length, int ahead) {
+			if (file == null)
+				return -1;
+			return BufferCache.this.read(file, pos, buf, offset, length, ahead);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+			return BufferCache.this.write(file, pos, buf, offset, length);
+		}
+
+		public int length() {
+			return (file == null) ? -1 : file.length;
+		}
+
+		public void close() {
+			if (file != null) {
+				BufferCache.this.close(file);
+				file = null;
+			}
+		}
+
+		private CachedFile file;
+	}
+
+	private FileSystem backing;
+
+	private int capacity;
+
+	private Lock lock = new Lock();
+
+	/** Signalled when a block stops being busy or a name is given up. */
+	private Condition ready = new Condition(lock);
+
+	/** The names being opened, closed or removed. */
+	private HashSet<String> claimed = new HashSet<String>();
+
+	/** Every file with blocks in the cache, by name. */
+	private HashMap<String, CachedFile> files = new HashMap<String, CachedFile>();
+
+	/** The cached blocks, least recently used first. */
+	private LinkedHashMap<String, Block> blocks = new LinkedHashMap<String, Block>(16, 0.75f, true);
+
+	private int nextFileId = 0;
+
+	/** The number of <tt>CachedOpenFile</tt>s open. */
+	private int openCount = 0;
+
+	private static final int blockSize = Processor.pageSize;
+}
@@ -203,6 +203,7 @@ public class KThread {
 		if (KThread.currentThread().joinThread != null) {
 			KThread temp = KThread.currentThread().joinThread;
 			KThread.currentThread().joinThread = null;
+			KThread.currentThread().joinQueue.nextThread();
 			temp.ready();
 		}
 		sleep();
@@ -280,6 +281,13 @@ public class KThread {
 		  }
 		  boolean status = Machine.interrupt().disable();
 		  this.joinThread = currentThread;
+		  // wait on a queue owned by this thread, so that a priority
+		  // scheduler can donate the joiner's priority to it
+		  if (this.joinQueue == null) {
+			  this.joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+			  this.joinQueue.acquire(this);
+		  }
+		  this.joinQueue.waitForAccess(currentThread);
 		  KThread.sleep();
 		  Machine.interrupt().restore(status);
 	}
@@ -313,8 +321,13 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			// the idle thread is yielding to itself, and nothing can become
+			// ready before the next interrupt, so skip the spinning
+			if (currentThread == idleThread)
+				Machine.interrupt().idle();
 			nextThread = idleThread;
+		}
 		nextThread.run();
 	}
 
@@ -359,6 +372,7 @@ public class KThread {
 		Lib.assertTrue(this == currentThread);
 		Lib.assertTrue(tcb == TCB.currentTCB());
 		Machine.autoGrader().runningThread(this);
+		ThreadedKernel.scheduler.runningThread(this);
 		status = statusRunning;
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
@@ -400,6 +414,35 @@ public class KThread {
 		new KThread(new PingTest(1)).setName("forked thread").fork();
 		new PingTest(0).run();
 		KThread.joinTest1();
+		if (Config.getInteger("TCB.maxThreads", TCB.maxThreads) == 0)
+			KThread.manyThreadsTest(20000);
+	}
+
+	/**
+	 * Fork <i>count</i> threads that are all alive at once, then join them.
+	 * Only run when <tt>TCB.maxThreads</tt> is 0, so there is no limit.
+	 */
+	private static void manyThreadsTest(int count) {
+		final Semaphore go = new Semaphore(0);
+		final int[] finished = new int[1];
+		KThread[] threads = new KThread[count];
+		for (int i = 0; i < count; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					go.P();
+					finished[0]++;
+				}
+			});
+			threads[i].setName("many threads " + i).fork();
+		}
+		// every thread is blocked on go, so all of them exist now
+		for (int i = 0; i < count; i++)
+			go.V();
+		for (int i = 0; i < count; i++)
+			threads[i].join();
+
+		System.out.println("Forked and joined " + finished[0] + " threads");
+		Lib.assertTrue(finished[0] == count, "Expected every thread to finish");
 	}
 	
     private static void joinTest1(){
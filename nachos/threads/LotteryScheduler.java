@@ -2,9 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -41,7 +40,241 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	/**
+	 * Return the fewest tickets a thread can have; every thread holds at
+	 * least one.
+	 */
+	protected int getPriorityMinimum() {
+		return 1;
+	}
+
+	/**
+	 * Return the most tickets a thread can have, which also caps the effective
+	 * number of tickets a thread can hold through donation.
+	 */
+	protected int getPriorityMaximum() {
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Test this scheduler's queues directly, on threads that never run. Draws
+	 * must follow the waiters' tickets, including after the Fenwick tree
+	 * grows, after a waiter's tickets change and after a waiter leaves. A
+	 * transferring queue must give its owner the sum of its waiters' tickets.
+	 * Only meaningful when this is <tt>ThreadedKernel.scheduler</tt>.
+	 */
+	public static void selfTest() {
+		LotteryScheduler scheduler = (LotteryScheduler) ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+
+		// ten waiters outgrow the tree's first eight slots
+		LotteryQueue queue = (LotteryQueue) scheduler.newThreadQueue(false);
+		KThread[] threads = new KThread[10];
+		int[] tickets = new int[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread(null).setName("lottery " + i);
+			tickets[i] = i + 1;
+			scheduler.setPriority(threads[i], tickets[i]);
+			queue.waitForAccess(threads[i]);
+		}
+		checkDraws(queue, threads, tickets);
+
+		scheduler.setPriority(threads[0], 45);
+		tickets[0] = 45;
+		checkDraws(queue, threads, tickets);
+
+		KThread winner = queue.nextThread();
+		tickets[Arrays.asList(threads).indexOf(winner)] = 0;
+		checkDraws(queue, threads, tickets);
+
+		LotteryQueue lock = (LotteryQueue) scheduler.newThreadQueue(true);
+		KThread owner = new KThread(null).setName("lottery owner");
+		lock.acquire(owner);
+		lock.waitForAccess(new KThread(null).setName("lottery waiter"));
+		KThread waiter = new KThread(null).setName("lottery waiter");
+		scheduler.setPriority(waiter, 5);
+		lock.waitForAccess(waiter);
+		int donated = scheduler.getEffectivePriority(owner);
+		System.out.println("Lottery donation: owner holds " + donated + " tickets");
+		Lib.assertTrue(donated == 1 + 1 + 5, "Expected the owner to hold its waiters' tickets");
+		lock.nextThread();
+		Lib.assertTrue(scheduler.getEffectivePriority(owner) == 1, "Expected the donation to end with ownership");
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Hold 1000 draws per ticket and check that each waiter wins close to its
+	 * share, and that a waiter with no tickets, because it left the queue,
+	 * never wins.
+	 */
+	private static void checkDraws(LotteryQueue queue, KThread[] threads, int[] tickets) {
+		int total = 0;
+		for (int count : tickets)
+			total += count;
+
+		int[] wins = new int[threads.length];
+		List<KThread> index = Arrays.asList(threads);
+		for (int i = 0; i < 1000 * total; i++)
+			wins[index.indexOf(queue.pickNextThread().thread)]++;
+
+		System.out.println("Lottery draws: tickets " + Arrays.toString(tickets) + ", wins " + Arrays.toString(wins));
+		for (int i = 0; i < threads.length; i++) {
+			Lib.assertTrue(Math.abs(wins[i] - 1000 * tickets[i]) <= 200 * tickets[i],
+					"Expected draws in proportion to tickets");
+		}
+	}
+
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * Each waiting thread occupies a slot of a Fenwick tree holding its
+	 * effective number of tickets, so adding, removing or re-weighting a
+	 * thread and drawing the winner are all O(log n).
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		protected ThreadState pickNextThread() {
+			if (size == 0)
+				return null;
+
+			long total = prefixSum(slots.length);
+			long winner = Math.min((long) (Lib.random() * total), total - 1);
+
+			// find the first slot whose prefix sum exceeds winner
+			int slot = 0;
+			for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+				if (slot + step <= slots.length && tree[slot + step] <= winner) {
+					slot += step;
+					winner -= tree[slot];
+				}
+			}
+
+			return slots[slot];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			System.out.print("owner: " + (owner == null ? "none" : owner.thread));
+			for (ThreadState state : slots) {
+				if (state != null)
+					System.out.print(", " + state.thread + " ("
+							+ state.getEffectivePriority() + ")");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * A lottery queue donates the sum of its waiters' tickets, capped at
+		 * <tt>getPriorityMaximum()</tt>.
+		 */
+		int donation() {
+			return (int) Math.min(prefixSum(slots.length), getPriorityMaximum());
+		}
+
+		void add(ThreadState state) {
+			if (free == 0)
+				grow();
+
+			int slot = freeSlots[--free];
+			slots[slot] = state;
+			state.queueIndex = slot;
+			size++;
+
+			update(slot, state.effectivePriority);
+		}
+
+		void remove(ThreadState state) {
+			int slot = state.queueIndex;
+			Lib.assertTrue(slots[slot] == state);
+
+			update(slot, -weights[slot]);
+			slots[slot] = null;
+			state.queueIndex = -1;
+			size--;
+
+			freeSlots[free++] = slot;
+		}
+
+		void reposition(ThreadState state) {
+			int slot = state.queueIndex;
+			update(slot, state.effectivePriority - weights[slot]);
+		}
+
+		/** Add <i>delta</i> to the weight of the given slot. */
+		private void update(int slot, long delta) {
+			weights[slot] += delta;
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/** Return the total weight of the first <i>count</i> slots. */
+		private long prefixSum(int count) {
+			long sum = 0;
+			for (int i = count; i > 0; i -= i & -i)
+				sum += tree[i];
+			return sum;
+		}
+
+		/** Double the number of slots, rebuilding the tree. */
+		private void grow() {
+			int oldCapacity = slots.length;
+			int capacity = Math.max(8, oldCapacity * 2);
+
+			slots = Arrays.copyOf(slots, capacity);
+			weights = Arrays.copyOf(weights, capacity);
+			tree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += weights[i - 1];
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+
+			freeSlots = new int[capacity];
+			for (int i = capacity - 1; i >= oldCapacity; i--)
+				freeSlots[free++] = i;
+		}
+
+		/** The thread in each slot, or <tt>null</tt> if the slot is free. */
+		private ThreadState[] slots = new ThreadState[0];
+
+		/** The number of tickets held in each slot. */
+		private long[] weights = new long[0];
+
+		/** The Fenwick tree over <tt>weights</tt>, indexed from 1. */
+		private long[] tree = new long[1];
+
+		/** Stack of free slots. */
+		private int[] freeSlots = new int[0];
+
+		private int free = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under lottery scheduling. The
+	 * priority is the number of tickets, and donated tickets add to it.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		protected int combine(int priority, int donation) {
+			return (int) Math.min((long) priority + donation, getPriorityMaximum());
+		}
 	}
 }
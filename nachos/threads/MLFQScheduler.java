@@ -0,0 +1,425 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A multi-level feedback queue scheduler.
+ * 
+ * <p>
+ * Threads are kept at one of several levels, level 0 being the highest. The
+ * next thread to be dequeued is always the one that has been waiting longest
+ * at the highest non-empty level. Threads start at level 0. A thread that has
+ * used up the CPU allotment (quantum) of its level, counted in simulated ticks
+ * over however many times it ran, is demoted one level; each level's quantum
+ * is twice that of the level above. Threads that block before using their
+ * quantum, such as interactive threads waiting for the console, therefore stay
+ * at a high level and are dispatched ahead of CPU-bound threads.
+ * 
+ * <p>
+ * Within a level, threads are scheduled round-robin at every timer interrupt.
+ * To avoid starvation, every thread is moved back to level 0 once every boost
+ * interval.
+ * 
+ * <p>
+ * The number of levels, the top-level quantum and the boost interval are read
+ * from <tt>MLFQScheduler.levels</tt>, <tt>MLFQScheduler.quantum</tt> and
+ * <tt>MLFQScheduler.boostInterval</tt>.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler() {
+		levels = Config.getInteger("MLFQScheduler.levels", 3);
+		quantum = Config.getInteger("MLFQScheduler.quantum", 1000);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50000);
+
+		Lib.assertTrue(levels > 0 && quantum > 0 && boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue.
+	 * 
+	 * @param transferPriority ignored. Levels are not donated.
+	 * @return a new MLFQ thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQQueue();
+	}
+
+	/**
+	 * Return the priority of a thread: <tt>levels - 1</tt> at the top level,
+	 * down to 0 at the bottom level.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return levels - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Move a thread to the level corresponding to the specified priority,
+	 * with a fresh quantum.
+	 */
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= 0 && priority < levels);
+
+		ThreadState state = getThreadState(thread);
+		MLFQQueue queue = state.waitingOn;
+
+		if (queue != null)
+			queue.remove(state);
+
+		state.level = levels - 1 - priority;
+		state.used = 0;
+
+		if (queue != null)
+			queue.add(state);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == levels - 1)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == 0)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Charge the previously running thread for the ticks it used, and start
+	 * the clock for the specified thread.
+	 */
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long now = Machine.timer().getTime();
+
+		if (running != null)
+			running.charge(now);
+
+		running = getThreadState(thread);
+		running.dispatchTime = now;
+	}
+
+	/**
+	 * Return the total number of ticks the specified thread has run for, as
+	 * of its last context switch.
+	 * 
+	 * @param thread the thread.
+	 * @return the CPU time used by the thread, in ticks.
+	 */
+	public long getCPUTime(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).cpuTime;
+	}
+
+	/**
+	 * Test this scheduler. A CPU-bound thread, started just after a boost,
+	 * must be demoted one level at a time as it uses up each level's
+	 * quantum, and must be back at level 0 after the next boost. Only
+	 * meaningful when this is <tt>ThreadedKernel.scheduler</tt>.
+	 */
+	public static void selfTest() {
+		final MLFQScheduler scheduler = (MLFQScheduler) ThreadedKernel.scheduler;
+		if (scheduler.levels < 2)
+			return;
+
+		// the levels the thread is seen at, each change recorded once
+		final ArrayList<Integer> trace = new ArrayList<Integer>();
+
+		KThread hog = new KThread(new Runnable() {
+			public void run() {
+				long start = Machine.timer().getTime();
+				while (Machine.timer().getTime() - start < 3L * scheduler.boostInterval) {
+					boolean intStatus = Machine.interrupt().disable();
+					int level = scheduler.getThreadState(KThread.currentThread()).getLevel();
+					// restoring interrupts advances the clock, as a busy thread would
+					Machine.interrupt().restore(intStatus);
+
+					if (trace.isEmpty() || trace.get(trace.size() - 1) != level)
+						trace.add(level);
+					if (level == 0 && trace.size() > 1)
+						break;
+				}
+			}
+		});
+
+		long now = Machine.timer().getTime();
+		ThreadedKernel.alarm.waitUntil(scheduler.boostInterval - now % scheduler.boostInterval);
+		hog.setName("mlfq hog").fork();
+		hog.join();
+
+		System.out.println("MLFQ levels of a CPU-bound thread: " + trace);
+		Lib.assertTrue(trace.size() > 2 && trace.get(0) == 0, "Expected the thread to be demoted");
+		for (int i = 1; i < trace.size() - 1; i++)
+			Lib.assertTrue(trace.get(i) == i, "Expected demotion one level at a time");
+		Lib.assertTrue(trace.get(trace.size() - 1) == 0, "Expected the thread to be boosted");
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Return the current boost epoch. Every thread and queue that was last
+	 * looked at in an earlier epoch is reset to level 0.
+	 */
+	private long boostEpoch() {
+		return Machine.timer().getTime() / boostInterval;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO list per level.
+	 */
+	protected class MLFQQueue extends ThreadQueue {
+		MLFQQueue() {
+			queues = new ArrayList<ArrayDeque<ThreadState>>(levels);
+			for (int i = 0; i < levels; i++)
+				queues.add(new ArrayDeque<ThreadState>());
+
+			epoch = boostEpoch();
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn == null);
+
+			// a thread giving up the CPU is charged now, so that a yield
+			// after a full quantum demotes it before it is queued
+			if (state == running)
+				state.charge(Machine.timer().getTime());
+
+			boost();
+			state.boost();
+
+			state.arrival = arrivals++;
+			add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			boost();
+
+			for (int i = 0; i < levels; i++) {
+				if (!queues.get(i).isEmpty()) {
+					ThreadState state = queues.get(i).removeFirst();
+					state.waitingOn = null;
+					return state.thread;
+				}
+			}
+
+			return null;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < levels; i++) {
+				System.out.print("level " + i + ":");
+				for (ThreadState state : queues.get(i))
+					System.out.print(" " + state.thread);
+				System.out.println();
+			}
+		}
+
+		void add(ThreadState state) {
+			state.waitingOn = this;
+			queues.get(state.level).addLast(state);
+		}
+
+		void remove(ThreadState state) {
+			boost();
+			queues.get(state.level).remove(state);
+			state.waitingOn = null;
+		}
+
+		/**
+		 * If a boost is due, move every waiting thread to level 0, keeping
+		 * them in the order they arrived.
+		 */
+		private void boost() {
+			long now = boostEpoch();
+			if (epoch == now)
+				return;
+
+			epoch = now;
+
+			ArrayList<ThreadState> waiting = new ArrayList<ThreadState>();
+			for (int i = 1; i < levels; i++) {
+				waiting.addAll(queues.get(i));
+				queues.get(i).clear();
+			}
+			if (waiting.isEmpty())
+				return;
+
+			waiting.addAll(queues.get(0));
+			queues.get(0).clear();
+			Collections.sort(waiting, new Comparator<ThreadState>() {
+				public int compare(ThreadState a, ThreadState b) {
+					return Long.compare(a.arrival, b.arrival);
+				}
+			});
+
+			for (ThreadState state : waiting) {
+				state.boost();
+				queues.get(0).addLast(state);
+			}
+		}
+
+		/** One FIFO list per level, level 0 first. */
+		private List<ArrayDeque<ThreadState>> queues;
+
+		/** The boost epoch this queue was last brought up to date in. */
+		private long epoch;
+
+		private long arrivals = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, how much of that level's
+	 * quantum it has used, and its total CPU time.
+	 */
+	protected class ThreadState {
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			this.epoch = boostEpoch();
+		}
+
+		/**
+		 * Return the level of the associated thread, after any boost that is
+		 * due.
+		 */
+		public int getLevel() {
+			// a waiting thread must be boosted along with its queue
+			if (waitingOn != null)
+				waitingOn.boost();
+			else
+				boost();
+
+			return level;
+		}
+
+		/**
+		 * Charge the associated thread for the ticks since it was dispatched,
+		 * demoting it if it has used up its quantum.
+		 */
+		void charge(long now) {
+			if (dispatchTime < 0)
+				return;
+
+			long ticks = now - dispatchTime;
+			dispatchTime = now;
+
+			boost();
+
+			cpuTime += ticks;
+			used += ticks;
+
+			if (used >= ((long) quantum << level)) {
+				used = 0;
+				if (level < levels - 1)
+					level++;
+			}
+		}
+
+		/** Reset the level if a boost has happened since the last look. */
+		void boost() {
+			long now = boostEpoch();
+			if (epoch != now) {
+				epoch = now;
+				level = 0;
+				used = 0;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The current level; 0 is the highest. */
+		protected int level = 0;
+
+		/** Ticks used at the current level. */
+		protected long used = 0;
+
+		/** Total ticks this thread has run for. */
+		protected long cpuTime = 0;
+
+		/** When this thread was last dispatched, or -1 if never. */
+		long dispatchTime = -1;
+
+		/** The boost epoch this state was last brought up to date in. */
+		long epoch;
+
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		MLFQQueue waitingOn = null;
+
+		/** When this thread started waiting on <tt>waitingOn</tt>. */
+		long arrival;
+	}
+
+	/** The number of levels. */
+	private int levels;
+
+	/** The quantum of level 0, in ticks; level <i>i</i> gets quantum * 2^i. */
+	private int quantum;
+
+	/** Ticks between priority boosts. */
+	private int boostInterval;
+
+	/** The state of the running thread, set by <tt>runningThread()</tt>. */
+	private ThreadState running = null;
+}
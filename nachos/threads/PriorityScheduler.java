@@ -2,7 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 
@@ -59,8 +60,8 @@ public class PriorityScheduler extends Scheduler {
 	public void setPriority(KThread thread, int priority) {
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		Lib.assertTrue(priority >= priorityMinimum
-				&& priority <= priorityMaximum);
+		Lib.assertTrue(priority >= getPriorityMinimum()
+				&& priority <= getPriorityMaximum());
 
 		getThreadState(thread).setPriority(priority);
 	}
@@ -72,7 +73,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMaximum)
+		if (priority == getPriorityMaximum())
 			ret = false;
 		else
 			setPriority(thread, priority + 1);
@@ -88,7 +89,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMinimum)
+		if (priority == getPriorityMinimum())
 			ret = false;
 		else
 			setPriority(thread, priority - 1);
@@ -97,6 +98,76 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test this scheduler with a priority inversion. A low-priority thread
+	 * holds a lock that a high-priority thread needs while a medium-priority
+	 * thread is ready. The main thread, at the maximum priority, joins the
+	 * high-priority thread. Its priority must reach the lock holder through
+	 * the join and then the lock, so the holder runs before the
+	 * medium-priority thread. Only meaningful when this is
+	 * <tt>ThreadedKernel.scheduler</tt>.
+	 */
+	public static void selfTest() {
+		final PriorityScheduler scheduler = (PriorityScheduler) ThreadedKernel.scheduler;
+		final Lock lock = new Lock();
+		final Semaphore held = new Semaphore(0);
+		final ArrayList<String> order = new ArrayList<String>();
+		final int[] donated = new int[1];
+
+		KThread low = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				held.V();
+				// let the main thread set up the inversion
+				KThread.yield();
+
+				boolean intStatus = Machine.interrupt().disable();
+				donated[0] = scheduler.getEffectivePriority(KThread.currentThread());
+				Machine.interrupt().restore(intStatus);
+
+				order.add("low");
+				lock.release();
+			}
+		}).setName("low");
+		KThread medium = new KThread(new Runnable() {
+			public void run() {
+				order.add("medium");
+			}
+		}).setName("medium");
+		KThread high = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				order.add("high");
+				lock.release();
+			}
+		}).setName("high");
+
+		boolean intStatus = Machine.interrupt().disable();
+		int oldPriority = scheduler.getPriority(KThread.currentThread());
+		scheduler.setPriority(KThread.currentThread(), priorityMaximum);
+		scheduler.setPriority(low, 1);
+		scheduler.setPriority(medium, 4);
+		scheduler.setPriority(high, 6);
+		Machine.interrupt().restore(intStatus);
+
+		low.fork();
+		held.P();
+		medium.fork();
+		high.fork();
+		high.join();
+		medium.join();
+		low.join();
+
+		intStatus = Machine.interrupt().disable();
+		scheduler.setPriority(KThread.currentThread(), oldPriority);
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("Priority donation: order " + order + ", lock holder at " + donated[0]);
+		Lib.assertTrue(donated[0] == priorityMaximum, "Expected the joiner's priority to reach the lock holder");
+		Lib.assertTrue(order.equals(Arrays.asList("low", "high", "medium")),
+				"Expected the lock holder to run before the medium-priority thread");
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -112,6 +183,24 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public static final int priorityMaximum = 7;
 
+	/**
+	 * Return the lowest priority a thread can have under this scheduler.
+	 * 
+	 * @return <tt>priorityMinimum</tt>, unless a subclass uses another range.
+	 */
+	protected int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	/**
+	 * Return the highest priority a thread can have under this scheduler.
+	 * 
+	 * @return <tt>priorityMaximum</tt>, unless a subclass uses another range.
+	 */
+	protected int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
 	/**
 	 * Return the scheduling state of the specified thread.
 	 * 
@@ -126,7 +215,9 @@ public class PriorityScheduler extends Scheduler {
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * A <tt>ThreadQueue</tt> that sorts threads by priority. The waiting
+	 * threads are kept in a binary heap ordered by effective priority and then
+	 * by arrival, so every operation is O(log n).
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +236,22 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+
+			// nobody is waiting, so the resource is simply released
+			if (next == null) {
+				if (owner != null) {
+					owner.owned.remove(this);
+					owner = null;
+				}
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +261,102 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			return size == 0 ? null : heap[0];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			ThreadState[] waiting = (heap == null) ? new ThreadState[0] : Arrays.copyOf(heap, size);
+			Arrays.sort(waiting, new java.util.Comparator<ThreadState>() {
+				public int compare(ThreadState a, ThreadState b) {
+					return before(a, b) ? -1 : before(b, a) ? 1 : 0;
+				}
+			});
+
+			System.out.print("owner: " + (owner == null ? "none" : owner.thread));
+			for (ThreadState state : waiting)
+				System.out.print(", " + state.thread + " ("
+						+ state.getEffectivePriority() + ")");
+			System.out.println();
+		}
+
+		/**
+		 * Return the priority this queue donates to its owner: the highest
+		 * effective priority among the waiting threads.
+		 */
+		int donation() {
+			return size == 0 ? getPriorityMinimum() : heap[0].effectivePriority;
+		}
+
+		/**
+		 * Return <tt>true</tt> if <i>a</i> should be dequeued before <i>b</i>.
+		 */
+		private boolean before(ThreadState a, ThreadState b) {
+			return a.effectivePriority > b.effectivePriority
+					|| (a.effectivePriority == b.effectivePriority && a.arrival < b.arrival);
+		}
+
+		void add(ThreadState state) {
+			if (heap == null)
+				heap = new ThreadState[8];
+			else if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+
+			state.queueIndex = size;
+			heap[size++] = state;
+			siftUp(state.queueIndex);
+		}
+
+		void remove(ThreadState state) {
+			int i = state.queueIndex;
+			Lib.assertTrue(heap[i] == state);
+
+			ThreadState last = heap[--size];
+			heap[size] = null;
+			state.queueIndex = -1;
+
+			if (i < size) {
+				heap[i] = last;
+				last.queueIndex = i;
+				reposition(last);
+			}
+		}
+
+		/**
+		 * Restore the heap order after the effective priority of a waiting
+		 * thread has changed.
+		 */
+		void reposition(ThreadState state) {
+			siftUp(state.queueIndex);
+			siftDown(state.queueIndex);
+		}
+
+		private void siftUp(int i) {
+			ThreadState state = heap[i];
+			while (i > 0 && before(state, heap[(i - 1) / 2])) {
+				heap[i] = heap[(i - 1) / 2];
+				heap[i].queueIndex = i;
+				i = (i - 1) / 2;
+			}
+			heap[i] = state;
+			state.queueIndex = i;
+		}
+
+		private void siftDown(int i) {
+			ThreadState state = heap[i];
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+				heap[i] = heap[child];
+				heap[i].queueIndex = i;
+				i = child;
+			}
+			heap[i] = state;
+			state.queueIndex = i;
 		}
 
 		/**
@@ -170,6 +364,25 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/**
+		 * The thread that last acquired this queue, if it transfers priority
+		 * and has not been released.
+		 */
+		protected ThreadState owner = null;
+
+		/**
+		 * The waiting threads, as a binary heap. It is allocated by the first
+		 * <tt>add()</tt>, so subclasses that override <tt>add()</tt> never
+		 * allocate it.
+		 */
+		private ThreadState[] heap = null;
+
+		/** The number of waiting threads. */
+		int size = 0;
+
+		/** Arrival stamp for the next waiting thread, for FIFO order. */
+		private long arrivals = 0;
 	}
 
 	/**
@@ -207,8 +420,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +434,52 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread from its
+		 * own priority and the donations of the queues it owns, and pass any
+		 * change along the chain of queues and owners it is waiting behind.
+		 * The walk stops as soon as some thread's effective priority, or the
+		 * donation of some queue, is unaffected. It is iterative, so long
+		 * chains cannot overflow the stack.
+		 */
+		protected void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (state != null) {
+				int effective = state.priority;
+
+				for (Iterator<PriorityQueue> i = state.owned.iterator(); i.hasNext();) {
+					PriorityQueue queue = i.next();
+
+					// a queue rejoins owned when somebody waits on it again
+					if (queue.size == 0)
+						i.remove();
+					else
+						effective = state.combine(effective, queue.donation());
+				}
+
+				if (effective == state.effectivePriority)
+					return;
+
+				PriorityQueue queue = state.waitingOn;
+				if (queue == null) {
+					state.effectivePriority = effective;
+					return;
+				}
+
+				int oldDonation = queue.donation();
+				state.effectivePriority = effective;
+				queue.reposition(state);
+
+				if (!queue.transferPriority || queue.owner == null
+						|| queue.donation() == oldDonation)
+					return;
+
+				state = queue.owner;
+			}
 		}
 
 		/**
@@ -238,7 +495,28 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			arrival = waitQueue.arrivals++;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null) {
+				waitQueue.owner.owned.add(waitQueue);
+				waitQueue.owner.updateEffectivePriority();
+			}
+		}
+
+		/**
+		 * Combine a thread's priority with a donation to give its effective
+		 * priority. A priority scheduler takes the maximum.
+		 * 
+		 * @param priority the priority accumulated so far.
+		 * @param donation the donation of one owned queue.
+		 * @return the combined priority.
+		 */
+		protected int combine(int priority, int donation) {
+			return Math.max(priority, donation);
 		}
 
 		/**
@@ -252,7 +530,23 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			// nextThread() has already taken us off the queue
+			if (waitingOn == waitQueue)
+				waitingOn = null;
+
+			if (!waitQueue.transferPriority)
+				return;
+
+			ThreadState previous = waitQueue.owner;
+			waitQueue.owner = this;
+
+			if (previous != null && previous != this) {
+				previous.owned.remove(waitQueue);
+				previous.updateEffectivePriority();
+			}
+
+			owned.add(waitQueue);
+			updateEffectivePriority();
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +554,24 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/**
+		 * The cached effective priority of the associated thread; always the
+		 * maximum of <tt>priority</tt> and the donations of the queues in
+		 * <tt>owned</tt>.
+		 */
+		protected int effectivePriority = getPriorityMinimum();
+
+		/** The priority-transferring queues this thread owns. */
+		protected HashSet<PriorityQueue> owned = new HashSet<PriorityQueue>();
+
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		protected PriorityQueue waitingOn = null;
+
+		/** The position of this thread in the heap of <tt>waitingOn</tt>. */
+		int queueIndex = -1;
+
+		/** When this thread started waiting on <tt>waitingOn</tt>. */
+		long arrival;
 	}
 }
@@ -152,4 +152,17 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Notify the scheduler that the specified thread has just been dispatched
+	 * and is now the current thread. Called by <tt>KThread</tt> on every
+	 * context switch, with interrupts disabled. Schedulers that charge threads
+	 * for the CPU time they use can use this to find out when each thread
+	 * started running. The default implementation does nothing.
+	 * 
+	 * @param thread the thread that is now running.
+	 */
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
 }
@@ -29,6 +29,9 @@ public class ThreadedKernel extends Kernel {
 			fileSystem = Machine.stubFileSystem();
 		else
 			fileSystem = null;
+		int cacheBlocks = Config.getInteger("ThreadedKernel.cacheBlocks", 0);
+		if (fileSystem != null && cacheBlocks > 0)
+			fileSystem = new BufferCache(fileSystem, cacheBlocks);
 
 		// start threading
 		new KThread(null);
@@ -38,7 +41,8 @@ public class ThreadedKernel extends Kernel {
 
 	/**
 	 * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
+	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes, and the scheduler
+	 * if it has a self test. Note that the
 	 * autograder never calls this method, so it is safe to put additional tests
 	 * here.
 	 */
@@ -46,6 +50,12 @@ public class ThreadedKernel extends Kernel {
 		KThread.selfTest();
 		Semaphore.selfTest();
 		SynchList.selfTest();
+		if (scheduler instanceof MLFQScheduler)
+			MLFQScheduler.selfTest();
+		else if (scheduler instanceof LotteryScheduler)
+			LotteryScheduler.selfTest();
+		else if (scheduler instanceof PriorityScheduler)
+			PriorityScheduler.selfTest();
 		//alarm.alarmTest1();
 		//dummy4.selfTest1();
 		//sqm.selfTest();
@@ -64,9 +74,19 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		syncFileSystem();
 		Machine.halt();
 	}
 
+	/**
+	 * Write back whatever the buffer cache holds for the file system, so
+	 * nothing is lost when the machine halts.
+	 */
+	public static void syncFileSystem() {
+		if (fileSystem instanceof BufferCache)
+			((BufferCache) fileSystem).sync();
+	}
+
 	/** Globally accessible reference to the scheduler. */
 	public static Scheduler scheduler = null;
 
@@ -0,0 +1,278 @@
+package nachos.userprog;
+
+import java.util.LinkedList;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A submission queue and a completion queue in a user process's memory, so
+ * the process can post many file operations with one <tt>ringEnter()</tt>
+ * trap and collect the results later. A kernel thread of the process's own
+ * carries the operations out in order while the process keeps running.
+ *
+ * <p>
+ * The ring is a header of four words (<tt>sq_head</tt>, <tt>sq_tail</tt>,
+ * <tt>cq_head</tt>, <tt>cq_tail</tt>) followed by the submission entries and
+ * then the completion entries; see <tt>struct io_ring</tt> in
+ * <tt>syscall.h</tt>. The kernel owns <tt>sq_head</tt> and <tt>cq_tail</tt>.
+ *
+ * <p>
+ * Only the process's own thread touches its memory and file table, since a
+ * page fault must be taken by the process that owns the page. Data to write
+ * and the files to use are taken when an operation is submitted. Data read
+ * is copied out, and a file opened is given a descriptor, when its
+ * completion is posted.
+ */
+public class SyscallRing {
+	/**
+	 * Set up a ring at <i>address</i> in <i>process</i>'s memory and start
+	 * its kernel thread.
+	 *
+	 * @param entries the number of entries in each queue, a power of two.
+	 */
+	public SyscallRing(UserProcess process, int address, int entries) {
+		Lib.assertTrue(entries > 0 && (entries & (entries - 1)) == 0);
+
+		this.process = process;
+		this.address = address;
+		this.entries = entries;
+
+		worker = new KThread(new Runnable() {
+			public void run() {
+				work();
+			}
+		});
+		worker.setName("syscall ring").fork();
+	}
+
+	/**
+	 * Submit up to <i>toSubmit</i> new entries from the submission queue,
+	 * wait until at least <i>minComplete</i> operations have finished, and
+	 * post every finished operation the completion queue has room for.
+	 * Called by the process's own thread.
+	 *
+	 * @return the number of entries submitted, or -1 if the ring cannot be
+	 * read or written.
+	 */
+	public int enter(int toSubmit, int minComplete) {
+		byte[] header = new byte[headerSize];
+		if (toSubmit < 0 || process.readVirtualMemory(address, header) != headerSize)
+			return -1;
+		int sqTail = Lib.bytesToInt(header, 4);
+		int cqHead = Lib.bytesToInt(header, 8);
+		// the counters run freely and wrap; only their difference matters
+		int available = sqTail - sqHead;
+		if (available < 0 || available > entries || cqTail - cqHead < 0 || cqTail - cqHead > entries)
+			return -1;
+
+		int count = 0;
+		byte[] sqe = new byte[sqeSize];
+		while (count < Math.min(toSubmit, available)) {
+			int slot = sqHead & (entries - 1);
+			if (process.readVirtualMemory(address + headerSize + slot * sqeSize, sqe) != sqeSize)
+				break;
+			Request request = new Request();
+			submit(request, prepare(request, sqe));
+			sqHead++;
+			count++;
+		}
+		if (count == 0 && toSubmit > 0 && available > 0)
+			return -1;
+		if (process.writeVirtualMemory(address, Lib.bytesFromInt(sqHead)) != 4)
+			return -1;
+
+		lock.acquire();
+		while (done.size() < minComplete && inFlight > 0)
+			changed.sleep();
+		LinkedList<Request> finished = new LinkedList<Request>();
+		while (!done.isEmpty() && cqTail - cqHead + finished.size() < entries)
+			finished.add(done.removeFirst());
+		lock.release();
+
+		int cqBase = address + headerSize + entries * sqeSize;
+		byte[] cqe = new byte[cqeSize];
+		for (Request request : finished) {
+			complete(request);
+			Lib.bytesFromInt(cqe, 0, request.userData);
+			Lib.bytesFromInt(cqe, 4, request.result);
+			process.writeVirtualMemory(cqBase + (cqTail & (entries - 1)) * cqeSize, cqe);
+			cqTail++;
+		}
+		if (process.writeVirtualMemory(address + 12, Lib.bytesFromInt(cqTail)) != 4)
+			return -1;
+		return count;
+	}
+
+	/**
+	 * Stop the kernel thread, dropping operations it has not started, and
+	 * close any file opened for a completion that was never posted. Called
+	 * by the process's own thread when it exits.
+	 */
+	public void shutdown() {
+		lock.acquire();
+		stopping = true;
+		inFlight -= pending.size();
+		pending.clear();
+		changed.wakeAll();
+		lock.release();
+		worker.join();
+
+		for (Request request : done) {
+			if (request.opened != null)
+				request.opened.close();
+		}
+		done.clear();
+	}
+
+	/**
+	 * Fill in <i>request</i> from a submission entry, gathering everything the
+	 * kernel thread needs from the process's memory and file table.
+	 *
+	 * @return <tt>false</tt> if the entry is invalid.
+	 */
+	private boolean prepare(Request request, byte[] sqe) {
+		request.opcode = Lib.bytesToInt(sqe, 0);
+		int fd = Lib.bytesToInt(sqe, 4);
+		int vaddr = Lib.bytesToInt(sqe, 8);
+		int length = Math.min(Lib.bytesToInt(sqe, 12), maxTransfer);
+		request.position = Lib.bytesToInt(sqe, 16);
+		request.userData = Lib.bytesToInt(sqe, 20);
+		request.vaddr = vaddr;
+
+		switch (request.opcode) {
+		case opRead:
+		case opWrite:
+			boolean read = request.opcode == opRead;
+			if (fd < 0 || fd >= process.openFileTable.length || fd == (read ? 1 : 0)
+					|| process.openFileTable[fd] == null || length < 0 || request.position < -1)
+				return false;
+			request.file = process.openFileTable[fd];
+			request.data = new byte[length];
+			return read || process.readVirtualMemory(vaddr, request.data) == length;
+		case opOpen:
+			request.name = process.readVirtualMemoryString(vaddr, 256);
+			return request.name != null;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Queue <i>request</i> for the kernel thread, or complete it at once with
+	 * an error if it is not <i>valid</i>.
+	 */
+	private void submit(Request request, boolean valid) {
+		lock.acquire();
+		if (!valid) {
+			request.result = -1;
+			request.data = null;
+			done.add(request);
+		} else {
+			pending.add(request);
+			inFlight++;
+			changed.wakeAll();
+		}
+		lock.release();
+	}
+
+	/**
+	 * The kernel thread: carry out requests in submission order.
+	 */
+	private void work() {
+		lock.acquire();
+		while (true) {
+			while (pending.isEmpty() && !stopping)
+				changed.sleep();
+			if (stopping)
+				break;
+			Request request = pending.removeFirst();
+			lock.release();
+
+			execute(request);
+
+			lock.acquire();
+			done.add(request);
+			inFlight--;
+			changed.wakeAll();
+		}
+		lock.release();
+	}
+
+	private void execute(Request request) {
+		switch (request.opcode) {
+		case opRead:
+			request.result = (request.position == -1)
+					? request.file.read(request.data, 0, request.data.length)
+					: request.file.read(request.position, request.data, 0, request.data.length);
+			break;
+		case opWrite:
+			request.result = (request.position == -1)
+					? request.file.write(request.data, 0, request.data.length)
+					: request.file.write(request.position, request.data, 0, request.data.length);
+			break;
+		case opOpen:
+			request.opened = ThreadedKernel.fileSystem.open(request.name, false);
+			request.result = (request.opened == null) ? -1 : 0;
+			break;
+		}
+	}
+
+	/**
+	 * Finish <i>request</i> on the process's own thread, just before its
+	 * completion is posted.
+	 */
+	private void complete(Request request) {
+		if (request.opcode == opRead && request.result > 0) {
+			if (process.writeVirtualMemory(request.vaddr, request.data, 0, request.result) != request.result)
+				request.result = -1;
+		} else if (request.opened != null) {
+			request.result = process.installFile(request.opened);
+			request.opened = null;
+		}
+	}
+
+	/** One operation taken from the submission queue. */
+	private static class Request {
+		int opcode;
+		OpenFile file;
+		int vaddr;
+		int position;
+		int userData;
+		byte[] data;
+		String name;
+		OpenFile opened;
+		int result;
+	}
+
+	private UserProcess process;
+	private int address;
+	private int entries;
+
+	/** Kernel copies of the counters the kernel owns. */
+	private int sqHead = 0, cqTail = 0;
+
+	private Lock lock = new Lock();
+	private Condition changed = new Condition(lock);
+
+	/** Requests not yet started, and requests finished but not posted. */
+	private LinkedList<Request> pending = new LinkedList<Request>(),
+			done = new LinkedList<Request>();
+
+	/** Requests submitted to the kernel thread and not yet finished. */
+	private int inFlight = 0;
+
+	private boolean stopping = false;
+
+	private KThread worker;
+
+	/** The most entries a ring may have in each queue. */
+	public static final int maxEntries = 64;
+
+	/** The most bytes one read or write entry transfers. */
+	public static final int maxTransfer = 16 * Processor.pageSize;
+
+	private static final int opRead = 0, opWrite = 1, opOpen = 2;
+
+	private static final int headerSize = 16, sqeSize = 24, cqeSize = 8;
+}
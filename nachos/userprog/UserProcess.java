@@ -6,8 +6,10 @@ import nachos.userprog.*;
 import nachos.vm.*;
 
 import java.io.EOFException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.zip.CRC32;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -257,6 +259,43 @@ public class UserProcess {
 		return sucessWrite;
 	}
 
+	/**
+	 * Find the physical memory behind up to <i>length</i> bytes of virtual
+	 * memory at <i>vaddr</i>, so a file can transfer to or from it directly.
+	 * The frames stay in place until <tt>unpinSegments()</tt> is called.
+	 * 
+	 * @param vaddr the first byte of virtual memory.
+	 * @param length the number of bytes wanted.
+	 * @param write <tt>true</tt> if the bytes are about to be modified.
+	 * @return one segment per page, covering as much of the range from
+	 * <i>vaddr</i> as can be accessed; empty if the first byte cannot be.
+	 */
+	protected OpenFile.Segment[] pinSegments(int vaddr, int length, boolean write) {
+		ArrayList<OpenFile.Segment> segments = new ArrayList<OpenFile.Segment>();
+		while (length > 0 && vaddr >= 0 && vaddr < numPages * pageSize) {
+			int vpn = Processor.pageFromAddress(vaddr);
+			int p_offset = Processor.offsetFromAddress(vaddr);
+			int segLen = Math.min(pageSize - p_offset, length);
+			TranslationEntry entry = this.pageTable[vpn];
+			if (!entry.valid || (write && entry.readOnly))
+				break;
+
+			entry.used = true;
+			if (write)
+				entry.dirty = true;
+			segments.add(new OpenFile.Segment(entry.ppn, p_offset, segLen));
+			vaddr += segLen;
+			length -= segLen;
+		}
+		return segments.toArray(new OpenFile.Segment[segments.size()]);
+	}
+
+	/**
+	 * Release the frames returned by <tt>pinSegments()</tt>.
+	 */
+	protected void unpinSegments(OpenFile.Segment[] segments) {
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -285,6 +324,9 @@ public class UserProcess {
 			return false;
 		}
 
+		executableName = name;
+		executableId = identify(name, executable);
+
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
@@ -398,6 +440,31 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Give this process, being forked from <i>parent</i>, a copy of the
+	 * parent's address space. Every page is copied now.
+	 * 
+	 * @return <tt>true</tt> if successful.
+	 */
+	protected boolean copyAddressSpace(UserProcess parent) {
+		UserKernel.phyPagelLock.acquire();
+		if (UserKernel.freePhyPages.size() < this.numPages) {
+			UserKernel.phyPagelLock.release();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
+		byte[] memory = Machine.processor().getMemory();
+		this.pageTable = new TranslationEntry[this.numPages];
+		for (int i = 0; i < this.numPages; ++i) {
+			TranslationEntry entry = parent.pageTable[i];
+			int ppn = UserKernel.freePhyPages.remove(0);
+			pageTable[i] = new TranslationEntry(i, ppn, entry.valid, entry.readOnly, false, false);
+			System.arraycopy(memory, entry.ppn * pageSize, memory, ppn * pageSize, pageSize);
+		}
+		UserKernel.phyPagelLock.release();
+		return true;
+	}
+
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
@@ -420,13 +487,20 @@ public class UserProcess {
 	 * program loaded into this process. Set the PC register to point at the
 	 * start function, set the stack pointer register to point at the top of the
 	 * stack, set the A0 and A1 registers to argc and argv, respectively, and
-	 * initialize all other registers to 0.
+	 * initialize all other registers to 0. A forked process instead starts
+	 * with the registers its parent had in <tt>fork()</tt>.
 	 */
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		if (this.forkRegisters != null) {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				processor.writeRegister(i, this.forkRegisters[i]);
+			return;
+		}
+
 		// by default, everything's 0
-		for (int i = 0; i < processor.numUserRegisters; i++)
+		for (int i = 0; i < Processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
 
 		// initialize PC and SP according
@@ -443,6 +517,7 @@ public class UserProcess {
 	 */
 	private int handleHalt() {
 
+		ThreadedKernel.syncFileSystem();
 		Machine.halt();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
@@ -463,18 +538,22 @@ public class UserProcess {
 		// Kernel.kernel.terminate();
 		
 
+		// Stop the syscall ring before the files it uses are closed
+		if (this.ring != null)
+			this.ring.shutdown();
+
 		// Close all files in file table
 		for (int i = 2; i < 16; ++i) {
 			if (this.openFileTable[i] != null) {
-				this.openFileTable[i].close();
+				closeShared(this.openFileTable[i]);
 				this.openFileTable[i] = null;
 			}
 		}
 		// Delete all memory by calling UnloadSections()
 		this.unloadSections();
 		
-		// Close the coff by calling coff.close()
-		this.coff.close();
+		// Close the coff, unless a forked process still runs from it
+		closeShared(this.coff);
 		
 		// If it has a parent process, save the status for parent
 		// Wake up parent if sleeping
@@ -531,6 +610,44 @@ public class UserProcess {
 		return -1;
 	}
 	
+	/**
+	 * Give <i>file</i>, opened on behalf of this process, the lowest free file
+	 * descriptor. The file is closed if there is none.
+	 * 
+	 * @return the new file descriptor, or -1.
+	 */
+	int installFile(OpenFile file) {
+		for (int i = 0; i < openFileTable.length; ++i) {
+			if (openFileTable[i] == null) {
+				openFileTable[i] = file;
+				return i;
+			}
+		}
+		file.close();
+		return -1;
+	}
+
+	/**
+	 * Handle the ringSetup() system call.
+	 */
+	private int handleRingSetup(int viAddr, int entries) {
+		if (this.ring != null || viAddr < 0)
+			return -1;
+		if (entries <= 0 || entries > SyscallRing.maxEntries || (entries & (entries - 1)) != 0)
+			return -1;
+		this.ring = new SyscallRing(this, viAddr, entries);
+		return 0;
+	}
+
+	/**
+	 * Handle the ringEnter() system call.
+	 */
+	private int handleRingEnter(int toSubmit, int minComplete) {
+		if (this.ring == null)
+			return -1;
+		return this.ring.enter(toSubmit, minComplete);
+	}
+
 	/**
 	 * Handle the create() system call.
 	 */
@@ -577,22 +694,23 @@ public class UserProcess {
 		
 		while (count > 0) {
 
-			int readLen = Math.min(count, pageSize);
-			byte[] tmp_data = new byte[readLen];
-			
-			int readByte =  of_instance.read(tmp_data,0 ,readLen);			
-			if (readByte == -1 || readByte != readLen)
+			// the file reads straight into the frames behind the buffer
+			OpenFile.Segment[] segments = this.pinSegments(viAddr, count, true);
+			if (segments.length == 0)
 				return -1;
+			int readLen = 0;
+			for (OpenFile.Segment segment : segments)
+				readLen += segment.length;
 			
-			
-			int byteTransfer =  this.writeVirtualMemory(viAddr, tmp_data);
-			if (byteTransfer != readByte)
+			int readByte =  of_instance.read(segments);
+			this.unpinSegments(segments);
+			if (readByte == -1 || readByte != readLen)
 				return -1;
 			
 			// move the pointer in virtual address
-			viAddr += byteTransfer;
-			count -= byteTransfer;
-			successRead += byteTransfer;
+			viAddr += readByte;
+			count -= readByte;
+			successRead += readByte;
 		}
 		
 		return successRead;
@@ -610,14 +728,16 @@ public class UserProcess {
 		
 		
 		while (count > 0) {
-			int readLen = Math.min(pageSize, count);
-			byte[] tmp_data = new byte[readLen];
-			
-			int readByte = this.readVirtualMemory(viAddr, tmp_data, 0, readLen);
-			if (readByte != readLen)
+			// the file writes straight from the frames behind the buffer
+			OpenFile.Segment[] segments = this.pinSegments(viAddr, count, false);
+			if (segments.length == 0)
 				return -1;
+			int readByte = 0;
+			for (OpenFile.Segment segment : segments)
+				readByte += segment.length;
 			
-			int writeByte = of_instance.write(tmp_data, 0, readByte);
+			int writeByte = of_instance.write(segments);
+			this.unpinSegments(segments);
 			if (writeByte  == -1 || writeByte != readByte)
 				return -1;
 			
@@ -630,11 +750,125 @@ public class UserProcess {
 		
 	}
 
+	private int handleReadv(int fileDescriptor, int iovAddr, int iovcnt) {
+		if (fileDescriptor < 0 || fileDescriptor > 15 || fileDescriptor == 1)
+			return -1;
+		return transferVector(openFileTable[fileDescriptor], iovAddr, iovcnt, true);
+	}
+
+	private int handleWritev(int fileDescriptor, int iovAddr, int iovcnt) {
+		if (fileDescriptor < 0 || fileDescriptor > 15 || fileDescriptor == 0)
+			return -1;
+		return transferVector(openFileTable[fileDescriptor], iovAddr, iovcnt, false);
+	}
+
+	private int handlePread(int fileDescriptor, int viAddr, int count, int position) {
+		if (fileDescriptor < 0 || fileDescriptor > 15 || fileDescriptor == 1)
+			return -1;
+		if (openFileTable[fileDescriptor] == null || count < 0 || position < 0)
+			return -1;
+		return transfer(openFileTable[fileDescriptor], position, viAddr, count, true);
+	}
+
+	private int handlePwrite(int fileDescriptor, int viAddr, int count, int position) {
+		if (fileDescriptor < 0 || fileDescriptor > 15 || fileDescriptor == 0)
+			return -1;
+		if (openFileTable[fileDescriptor] == null || count < 0 || position < 0)
+			return -1;
+		return transfer(openFileTable[fileDescriptor], position, viAddr, count, false);
+	}
+
+	/**
+	 * Move data between <i>file</i>, at its file pointer, and the
+	 * <i>iovcnt</i> buffers described by the <tt>struct iovec</tt> array at
+	 * <i>iovAddr</i>, stopping at the first buffer not transferred in full.
+	 * 
+	 * @param toMemory <tt>true</tt> to read the file into the buffers.
+	 * @return the number of bytes transferred, or -1 if an error occurred
+	 * before any were.
+	 */
+	private int transferVector(OpenFile file, int iovAddr, int iovcnt, boolean toMemory) {
+		if (file == null || iovcnt < 0 || iovcnt > maxIovecs)
+			return -1;
+		byte[] iov = new byte[iovcnt * 8];
+		if (readVirtualMemory(iovAddr, iov) != iov.length)
+			return -1;
+
+		int total = 0;
+		for (int i = 0; i < iovcnt; i++) {
+			int base = Lib.bytesToInt(iov, i * 8);
+			int length = Lib.bytesToInt(iov, i * 8 + 4);
+			if (length < 0)
+				return (total == 0) ? -1 : total;
+			int amount = transfer(file, -1, base, length, toMemory);
+			if (amount == -1)
+				return (total == 0) ? -1 : total;
+			total += amount;
+			if (amount < length)
+				break;
+		}
+		return total;
+	}
+
+	/**
+	 * Move up to <i>count</i> bytes between <i>file</i> and virtual memory
+	 * at <i>vaddr</i>, straight through the frames behind the buffer.
+	 * 
+	 * @param position the file position to start at, or -1 to use and
+	 * advance the file pointer.
+	 * @param toMemory <tt>true</tt> to read the file into memory.
+	 * @return the number of bytes transferred, which is short at the end of
+	 * the file or at a page that cannot be accessed, or -1 if an error
+	 * occurred before any were.
+	 */
+	private int transfer(OpenFile file, int position, int vaddr, int count, boolean toMemory) {
+		byte[] memory = Machine.processor().getMemory();
+		int total = 0;
+		while (count > 0) {
+			OpenFile.Segment[] segments = this.pinSegments(vaddr, count, toMemory);
+			if (segments.length == 0)
+				return (total == 0) ? -1 : total;
+
+			int length = 0, amount = 0;
+			for (OpenFile.Segment segment : segments)
+				length += segment.length;
+			if (position == -1) {
+				amount = toMemory ? file.read(segments) : file.write(segments);
+			} else {
+				for (OpenFile.Segment segment : segments) {
+					int pos = position + amount;
+					int n = toMemory ? file.read(pos, memory, segment.getAddress(), segment.length)
+							: file.write(pos, memory, segment.getAddress(), segment.length);
+					if (n == -1) {
+						if (amount == 0)
+							amount = -1;
+						break;
+					}
+					amount += n;
+					if (n < segment.length)
+						break;
+				}
+			}
+			this.unpinSegments(segments);
+			if (amount == -1)
+				return (total == 0) ? -1 : total;
+
+			total += amount;
+			vaddr += amount;
+			count -= amount;
+			if (position != -1)
+				position += amount;
+			if (amount < length)
+				break;
+		}
+		return total;
+	}
+
 	private int handleClose(int fileDescriptor) {
 		if (fileDescriptor < 0 || fileDescriptor > 15) return -1;
 		if (openFileTable[fileDescriptor] == null) return -1;
 		
-		openFileTable[fileDescriptor].close();
+		closeShared(openFileTable[fileDescriptor]);
 		openFileTable[fileDescriptor] = null;
 		return 0;
 	}
@@ -647,7 +881,7 @@ public class UserProcess {
 		// If this file in the table
 		for (int i =0; i < 16; ++i) {
 			if (openFileTable[i] != null && openFileTable[i].getName() == fileName) {
-				openFileTable[i].close();
+				closeShared(openFileTable[i]);
 				openFileTable[i] = null;
 			}
 		}
@@ -697,6 +931,132 @@ public class UserProcess {
 		return childProcess.pid;
 	}
 	
+	/**
+	 * Handle the fork() system call. The child gets a copy of this process's
+	 * address space and open files, and returns 0 from the same call.
+	 */
+	private int handleFork() {
+		UserProcess childProcess = UserProcess.newUserProcess();
+		if (!childProcess.forkFrom(this)) {
+			// the child never runs, so close the console it was given
+			childProcess.openFileTable[0].close();
+			childProcess.openFileTable[1].close();
+			UserKernel.procLock.acquire();
+			--UserKernel.numOfRunningProcess;
+			UserKernel.procLock.release();
+			return -1;
+		}
+		childProcess.parentProcess = this;
+		this.childMap.put(new Integer(childProcess.pid), childProcess);
+
+		childProcess.thread = new UThread(childProcess);
+		childProcess.thread.setName(this.executableName).fork();
+
+		return childProcess.pid;
+	}
+
+	/**
+	 * Identify the contents of an executable, so that only processes running
+	 * the same bytes share its read-only pages. A file that is rewritten in
+	 * place keeps its name and may keep its length, so both are combined with
+	 * a checksum of the whole file.
+	 * 
+	 * @param name the name of the executable.
+	 * @param executable the open executable.
+	 * @return a key that changes whenever the executable's contents do.
+	 */
+	private static String identify(String name, OpenFile executable) {
+		CRC32 checksum = new CRC32();
+		byte[] buffer = new byte[pageSize];
+		int length = executable.length();
+		for (int pos = 0; pos < length; ) {
+			int amount = executable.read(pos, buffer, 0,
+					Math.min(buffer.length, length - pos));
+			if (amount <= 0)
+				break;
+			checksum.update(buffer, 0, amount);
+			pos += amount;
+		}
+		return name + ":" + length + ":" + Long.toHexString(checksum.getValue());
+	}
+
+	/**
+	 * Make this new process a copy of <i>parent</i>, which is in the middle
+	 * of a fork() system call. The child runs from the parent's
+	 * <tt>Coff</tt>, and shares the parent's open files along with their
+	 * positions.
+	 * 
+	 * @return <tt>true</tt> if successful.
+	 */
+	private boolean forkFrom(UserProcess parent) {
+		this.coff = parent.coff;
+		this.executableName = parent.executableName;
+		this.executableId = parent.executableId;
+		this.numPages = parent.numPages;
+		if (!this.copyAddressSpace(parent))
+			return false;
+		share(this.coff);
+
+		for (int i = 2; i < 16; ++i) {
+			this.openFileTable[i] = parent.openFileTable[i];
+			if (this.openFileTable[i] != null)
+				share(this.openFileTable[i]);
+		}
+
+		// resume after the syscall, returning 0
+		Processor processor = Machine.processor();
+		this.forkRegisters = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			this.forkRegisters[i] = processor.readRegister(i);
+		this.forkRegisters[Processor.regV0] = 0;
+		this.forkRegisters[Processor.regPC] = this.forkRegisters[Processor.regNextPC];
+		this.forkRegisters[Processor.regNextPC] += 4;
+		return true;
+	}
+
+	/**
+	 * Note that one more process uses <i>shared</i>, a <tt>Coff</tt> or
+	 * <tt>OpenFile</tt> inherited through fork().
+	 */
+	private static void share(Object shared) {
+		UserKernel.procLock.acquire();
+		Integer users = forkShares.get(shared);
+		forkShares.put(shared, (users == null) ? 2 : users + 1);
+		UserKernel.procLock.release();
+	}
+
+	/**
+	 * Stop using <i>file</i>, closing it if no process it was shared with
+	 * through fork() still uses it.
+	 */
+	private static void closeShared(OpenFile file) {
+		if (unshare(file))
+			file.close();
+	}
+
+	/**
+	 * Stop using <i>coff</i>, closing it if no process it was shared with
+	 * through fork() still runs from it.
+	 */
+	private static void closeShared(Coff coff) {
+		if (unshare(coff))
+			coff.close();
+	}
+
+	/**
+	 * Stop using <i>shared</i>.
+	 * 
+	 * @return <tt>true</tt> if this was its last user.
+	 */
+	private static boolean unshare(Object shared) {
+		UserKernel.procLock.acquire();
+		Integer users = forkShares.remove(shared);
+		if (users != null && users > 2)
+			forkShares.put(shared, users - 1);
+		UserKernel.procLock.release();
+		return users == null;
+	}
+
 	private int handleJoin(int childPID, int viAddr) {
 		
 		
@@ -725,7 +1085,12 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallFork = 13, syscallReadv = 15,
+			syscallWritev = 16, syscallPread = 17, syscallPwrite = 18,
+			syscallRingSetup = 19, syscallRingEnter = 20;
+
+	/** The most buffers <tt>readv()</tt> and <tt>writev()</tt> accept. */
+	private static final int maxIovecs = 64;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -779,6 +1144,40 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>int  pread(int fd, char *buffer, int size, int pos);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  pwrite(int fd, char *buffer, int size, int pos);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int  ringSetup(struct io_ring *ring, int entries);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>20</td>
+	 * <td><tt>int  ringEnter(int toSubmit, int minComplete);
+	 * 								</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -812,6 +1211,20 @@ public class UserProcess {
 			return handleExec(a0, a1, a2);
 		case syscallJoin:
 			return handleJoin(a0, a1);
+		case syscallFork:
+			return handleFork();
+		case syscallReadv:
+			return handleReadv(a0, a1, a2);
+		case syscallWritev:
+			return handleWritev(a0, a1, a2);
+		case syscallPread:
+			return handlePread(a0, a1, a2, a3);
+		case syscallPwrite:
+			return handlePwrite(a0, a1, a2, a3);
+		case syscallRingSetup:
+			return handleRingSetup(a0, a1);
+		case syscallRingEnter:
+			return handleRingEnter(a0, a1);
 		
 		
 
@@ -856,6 +1269,19 @@ public class UserProcess {
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/**
+	 * The number of processes using each <tt>Coff</tt> and <tt>OpenFile</tt>
+	 * shared through fork(), for those used by more than one. Protected by
+	 * <tt>UserKernel.procLock</tt>.
+	 */
+	private static HashMap<Object, Integer> forkShares = new HashMap<Object, Integer>();
+
+	/** The name of the executable this process runs. */
+	protected String executableName;
+
+	/** Identifies the executable this process runs, for sharing its pages. */
+	protected String executableId;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
@@ -872,6 +1298,9 @@ public class UserProcess {
 
 	private int argc, argv;
 
+	/** For a forked process, the registers to start with; otherwise null. */
+	private int[] forkRegisters;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
@@ -879,7 +1308,10 @@ public class UserProcess {
 	
 	//  file descriptor table
 	//  a file table size of 16, supporting up to 16 concurrently open files per process
-	private OpenFile[] openFileTable;
+	protected OpenFile[] openFileTable;
+
+	/** The ring set up by <tt>ringSetup()</tt>, or null. */
+	private SyscallRing ring;
 	
 	
 	// the parent process
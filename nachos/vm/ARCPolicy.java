@@ -0,0 +1,100 @@
+package nachos.vm;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import nachos.machine.*;
+
+/**
+ * Adaptive replacement. Nachos only exposes reference bits, so this is the
+ * clock form of ARC (CAR, Bansal and Modha). Resident pages live in two
+ * clocks: <tt>T1</tt> for pages referenced once since being faulted in and
+ * <tt>T2</tt> for pages referenced again. The ghost lists <tt>B1</tt> and
+ * <tt>B2</tt> remember pages recently evicted from each. A fault on a page
+ * in <tt>B1</tt> means <tt>T1</tt> was too small, and a fault on a page in
+ * <tt>B2</tt> means <tt>T2</tt> was; the target size <tt>p</tt> of
+ * <tt>T1</tt> moves accordingly.
+ */
+public class ARCPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new ARC policy.
+	 */
+	public ARCPolicy() {
+		super();
+		pages = new Object[numFrames];
+	}
+
+	public void frameLoaded(int ppn, Object page) {
+		pages[ppn] = page;
+		if (b1.contains(page)) {
+			target = Math.min(target + Math.max(1, b2.size() / b1.size()), numFrames);
+			b1.remove(page);
+			t2.addLast(ppn);
+		} else if (b2.contains(page)) {
+			target = Math.max(target - Math.max(1, b1.size() / b2.size()), 0);
+			b2.remove(page);
+			t2.addLast(ppn);
+		} else {
+			// keep the directory to twice the size of memory
+			if (t1.size() + b1.size() >= numFrames && !b1.isEmpty())
+				forgetOldest(b1);
+			else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * numFrames && !b2.isEmpty())
+				forgetOldest(b2);
+			t1.addLast(ppn);
+		}
+	}
+
+	public void frameFreed(int ppn) {
+		if (!t1.remove(ppn))
+			t2.remove(ppn);
+		pages[ppn] = null;
+	}
+
+	public int chooseVictim() {
+		int skipped1 = 0, skipped2 = 0;
+		while (skipped1 < t1.size() || skipped2 < t2.size()) {
+			boolean fromT1 = (t1.size() >= Math.max(1, target) && skipped1 < t1.size())
+					|| skipped2 >= t2.size();
+			ArrayDeque<Integer> clock = fromT1 ? t1 : t2;
+			int ppn = clock.pollFirst();
+
+			if (!evictable(ppn)) {
+				clock.addLast(ppn);
+				if (fromT1)
+					skipped1++;
+				else
+					skipped2++;
+			} else if (referenced(ppn)) {
+				t2.addLast(ppn);
+				if (fromT1)
+					skipped1 = Math.min(skipped1, t1.size());
+				else
+					skipped2 = 0;
+			} else {
+				(fromT1 ? b1 : b2).add(pages[ppn]);
+				return ppn;
+			}
+		}
+		return -1;
+	}
+
+	private void forgetOldest(LinkedHashSet<Object> ghosts) {
+		Iterator<Object> eldest = ghosts.iterator();
+		eldest.next();
+		eldest.remove();
+	}
+
+	/** The target size of <tt>T1</tt>. */
+	private int target = 0;
+
+	private ArrayDeque<Integer> t1 = new ArrayDeque<Integer>();
+	private ArrayDeque<Integer> t2 = new ArrayDeque<Integer>();
+
+	/** Ghosts of pages evicted from <tt>T1</tt> and <tt>T2</tt>, oldest first. */
+	private LinkedHashSet<Object> b1 = new LinkedHashSet<Object>();
+	private LinkedHashSet<Object> b2 = new LinkedHashSet<Object>();
+
+	/** The page held by each frame. */
+	private Object[] pages;
+}
@@ -0,0 +1,44 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The second-chance clock algorithm. A single hand sweeps the frames,
+ * clearing reference bits, and evicts the first page it finds unreferenced.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		super();
+	}
+
+	public int chooseVictim() {
+		int skipped = 0;
+		while (true) {
+			if (!evictable(hand)) {
+				// everything is pinned or in transit
+				if (++skipped == numFrames)
+					return -1;
+				advance();
+				continue;
+			}
+			skipped = 0;
+
+			if (!referenced(hand))
+				break;
+			advance();
+		}
+
+		int victim = hand;
+		advance();
+		return victim;
+	}
+
+	private void advance() {
+		hand = (hand + 1) % numFrames;
+	}
+
+	private int hand = 0;
+}
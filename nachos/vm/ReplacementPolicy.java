@@ -0,0 +1,98 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Chooses which physical page to evict when no frame is free. The policy to
+ * use is given by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>.
+ *
+ * <p>
+ * Every method is called with <tt>VMKernel.frameLock</tt> held. A policy may
+ * not choose a frame that is pinned, busy or recently faulted in (see
+ * <tt>evictable()</tt>), and it learns about references
+ * only through the <tt>used</tt> bit of each frame's translation entry.
+ *
+ * @see nachos.vm.ClockPolicy
+ * @see nachos.vm.WSClockPolicy
+ * @see nachos.vm.TwoQueuePolicy
+ * @see nachos.vm.ARCPolicy
+ */
+public abstract class ReplacementPolicy {
+	/**
+	 * Allocate a new replacement policy.
+	 */
+	public ReplacementPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+	}
+
+	/**
+	 * Note that a page has just been loaded into <i>ppn</i>.
+	 *
+	 * @param ppn the frame now holding the page.
+	 * @param page an object identifying the page, the same every time this
+	 * page is loaded, so policies can remember pages they evicted.
+	 */
+	public void frameLoaded(int ppn, Object page) {
+	}
+
+	/**
+	 * Note that <i>ppn</i> was released without being evicted, because its
+	 * process exited.
+	 *
+	 * @param ppn the frame returned to the free list.
+	 */
+	public void frameFreed(int ppn) {
+	}
+
+	/**
+	 * Pick a frame to evict. The chosen frame is no longer tracked by the
+	 * policy until it is passed to <tt>frameLoaded()</tt> again.
+	 *
+	 * @return the frame to evict, or -1 if every frame is pinned or busy.
+	 */
+	public abstract int chooseVictim();
+
+	/**
+	 * Return <tt>true</tt> if <i>ppn</i> holds a page that may be evicted now.
+	 */
+	protected boolean evictable(int ppn) {
+		VMKernel.Information frame = VMKernel.IPT[ppn];
+		return frame.pin == 0 && !frame.busy && frame.entry != null
+				&& (frame.recent == 0 || VMKernel.evictRecent);
+	}
+
+	/**
+	 * Test and clear the reference bit of the page in <i>ppn</i>, counting a
+	 * set bit as a hit. A shared page is referenced if any process using it
+	 * referenced it.
+	 *
+	 * @return <tt>true</tt> if the page was used since the last test.
+	 */
+	protected boolean referenced(int ppn) {
+		VMKernel.Information frame = VMKernel.IPT[ppn];
+		boolean used = frame.entry.used;
+		frame.entry.used = false;
+		if (frame.sharers != null) {
+			for (TranslationEntry entry : frame.sharers) {
+				used |= entry.used;
+				entry.used = false;
+			}
+		}
+		if (!used)
+			return false;
+		Machine.incrNumPageHits();
+		return true;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the page in <i>ppn</i> must be written to swap
+	 * before its frame can be reused.
+	 */
+	protected boolean dirty(int ppn) {
+		return VMKernel.IPT[ppn].entry.dirty;
+	}
+
+	/** The number of physical pages. */
+	protected final int numFrames;
+}
@@ -0,0 +1,110 @@
+package nachos.vm;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import nachos.machine.*;
+
+/**
+ * The 2Q algorithm of Johnson and Shasha. A page faulted in for the first
+ * time joins <tt>A1in</tt>, a FIFO holding about
+ * <tt>TwoQueuePolicy.inPercent</tt> percent of memory; pages leaving it are
+ * remembered in the ghost list <tt>A1out</tt>. Only a page faulted in again
+ * while still remembered is considered hot and joins <tt>Am</tt>, which is
+ * managed as a clock. A burst of references to a page while it sits in
+ * <tt>A1in</tt> therefore does not promote it, so one pass over a large array
+ * cannot flush the hot pages out of <tt>Am</tt>.
+ *
+ * <p>
+ * A fault on a page still in <tt>A1out</tt> is 2Q's notion of a hit, and is
+ * counted as one, along with references seen in <tt>A1in</tt> and
+ * <tt>Am</tt>.
+ */
+public class TwoQueuePolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new 2Q policy.
+	 */
+	public TwoQueuePolicy() {
+		super();
+		inLimit = Math.max(1, numFrames * Config.getInteger("TwoQueuePolicy.inPercent", 25) / 100);
+		outLimit = Math.max(1, numFrames * Config.getInteger("TwoQueuePolicy.outPercent", 50) / 100);
+		pages = new Object[numFrames];
+	}
+
+	public void frameLoaded(int ppn, Object page) {
+		pages[ppn] = page;
+		if (a1out.remove(page)) {
+			Machine.incrNumPageHits();
+			am.addLast(ppn);
+		} else {
+			a1in.addLast(ppn);
+		}
+	}
+
+	public void frameFreed(int ppn) {
+		if (!a1in.remove(ppn))
+			am.remove(ppn);
+		pages[ppn] = null;
+	}
+
+	public int chooseVictim() {
+		int ppn = -1;
+		if (a1in.size() > inLimit || am.isEmpty())
+			ppn = evictFromIn();
+		if (ppn == -1)
+			ppn = evictFromMain();
+		if (ppn == -1)
+			ppn = evictFromIn();
+		return ppn;
+	}
+
+	/**
+	 * Evict the oldest evictable page in <tt>A1in</tt> and remember it in
+	 * <tt>A1out</tt>. Its reference bit is counted but does not save it.
+	 */
+	private int evictFromIn() {
+		for (Iterator<Integer> i = a1in.iterator(); i.hasNext();) {
+			int ppn = i.next();
+			if (evictable(ppn)) {
+				referenced(ppn);
+				i.remove();
+				a1out.add(pages[ppn]);
+				if (a1out.size() > outLimit) {
+					Iterator<Object> eldest = a1out.iterator();
+					eldest.next();
+					eldest.remove();
+				}
+				return ppn;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Run the clock over <tt>Am</tt>.
+	 */
+	private int evictFromMain() {
+		for (int i = 2 * am.size(); i > 0; i--) {
+			int ppn = am.pollFirst();
+			if (evictable(ppn) && !referenced(ppn))
+				return ppn;
+			am.addLast(ppn);
+		}
+		return -1;
+	}
+
+	private int inLimit, outLimit;
+
+	/** Resident pages seen once, oldest first. */
+	private ArrayDeque<Integer> a1in = new ArrayDeque<Integer>();
+
+	/** Resident hot pages, in clock order. */
+	private ArrayDeque<Integer> am = new ArrayDeque<Integer>();
+
+	/** Pages recently evicted from <tt>A1in</tt>, oldest first. */
+	private LinkedHashSet<Object> a1out = new LinkedHashSet<Object>();
+
+	/** The page held by each frame. */
+	private Object[] pages;
+}
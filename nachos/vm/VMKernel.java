@@ -1,6 +1,12 @@
 package nachos.vm;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import nachos.machine.*;
 import nachos.threads.*;
@@ -23,17 +29,27 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
-		victim = 0;
         IPT = new Information[Machine.processor().getNumPhysPages()];
         for(int i = 0; i < Machine.processor().getNumPhysPages(); i++){
-          IPT[i] = new Information(null, null, false);
+          IPT[i] = new Information(null, null, 0);
         }
-        swapFile = ThreadedKernel.fileSystem.open("swapFile", true);
-        freeSwapPages = new LinkedList<Integer>();
-        num_sp = 0;
-        vmlock = new Lock();
-        CV = new Condition(vmlock);
-        pinCount = 0;
+        // one frame stays zero-filled and is mapped read-only by every
+        // zero-fill page until it is first written
+        zeroPage = freePhyPages.removeLast();
+        Arrays.fill(Machine.processor().getMemory(), zeroPage * Processor.pageSize,
+            (zeroPage + 1) * Processor.pageSize, (byte) 0);
+        sharedText = new HashMap<String, Integer>();
+        // the VM clusters and reads ahead its own swap I/O
+        swapFile = BufferCache.uncached(ThreadedKernel.fileSystem).open("swapFile", true);
+        swapMap = new BitSet();
+        swapCluster = Math.max(1, Config.getInteger("VMKernel.swapCluster", 8));
+        readAhead = Config.getInteger("VMKernel.readAhead", 4);
+        compressedSwapBytes = Config.getInteger("VMKernel.compressedSwapBytes", 0);
+        frameLock = new Lock();
+        frameReleased = new Condition(frameLock);
+        swapLock = new Lock();
+        replacementPolicy = (ReplacementPolicy) Lib.constructObject(
+            Config.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
 	}
 
 	/**
@@ -64,28 +80,272 @@ public class VMKernel extends UserKernel {
 
 	private static final char dbgVM = 'v';
 	
-	public static int victim;
-
     public static Information IPT[];
 
-    public static LinkedList<Integer> freeSwapPages;
+    /** The shared read-only zero frame; never evicted or freed. */
+    public static int zeroPage;
+
+    /**
+     * Frames holding read-only COFF pages, keyed by executable and page, so
+     * every process running the same program maps the same frame. Protected
+     * by <tt>frameLock</tt>.
+     */
+    public static HashMap<String, Integer> sharedText;
 
     public static OpenFile swapFile;
 
-    public static int num_sp;
- 
-    public static Lock vmlock;
+    /**
+     * Protects the IPT and the clock hand. Held only while a frame is being
+     * chosen or installed, never across swap or COFF I/O.
+     */
+    public static Lock frameLock;
+
+    /** Signalled whenever a frame is unpinned or finishes its I/O. */
+    public static Condition frameReleased;
+
+    /** Chooses frames to evict; called with <tt>frameLock</tt> held. */
+    public static ReplacementPolicy replacementPolicy;
+
+    /**
+     * Set while the replacement policy may evict recently faulted pages,
+     * because every other frame is in use and nothing is in transit.
+     * Protected by <tt>frameLock</tt>.
+     */
+    public static boolean evictRecent = false;
+
+    /**
+     * Protects <tt>swapMap</tt>, <tt>swapShares</tt> and
+     * <tt>compressedBytes</tt>.
+     */
+    public static Lock swapLock;
+
+    /** One bit per swap page, set while the page is allocated. */
+    private static BitSet swapMap;
+
+    /**
+     * The number of processes holding each swap page shared by
+     * <tt>fork()</tt>, for those held by more than one.
+     */
+    private static HashMap<Integer, Integer> swapShares = new HashMap<Integer, Integer>();
+
+    /**
+     * The number of contiguous swap pages reserved for a process at a time,
+     * and so the most pages one eviction can write.
+     */
+    public static int swapCluster;
+
+    /**
+     * The most pages read from swap ahead of a sequential fault; 0 disables
+     * read-ahead.
+     */
+    public static int readAhead;
+
+    /**
+     * Allocate <i>count</i> contiguous pages in the swap file. The lowest
+     * free run that fits is used, so freed space is reused before the file
+     * grows.
+     *
+     * @param count the number of pages.
+     * @return the first swap page of the run.
+     */
+    public static int allocateSwapRun(int count) {
+        swapLock.acquire();
+        int start = swapMap.nextClearBit(0);
+        while (true) {
+            int end = swapMap.nextSetBit(start);
+            if (end == -1 || end - start >= count)
+                break;
+            start = swapMap.nextClearBit(end);
+        }
+        swapMap.set(start, start + count);
+        swapLock.release();
+        return start;
+    }
+
+    /**
+     * Compress a page being evicted into the in-memory swap tier. Pages that
+     * do not shrink to half their size, or that would take the tier over
+     * <tt>VMKernel.compressedSwapBytes</tt>, are left for the swap file. An
+     * all-zero page is stored as an empty image.
+     *
+     * @param memory the array holding the page.
+     * @param offset the offset of the page in <i>memory</i>.
+     * @return the compressed image, or <tt>null</tt> if the page must go to
+     * the swap file.
+     */
+    public static byte[] compressPage(byte[] memory, int offset) {
+        if (compressedSwapBytes <= 0)
+            return null;
+
+        byte[] image = zeroImage;
+        for (int i = offset; i < offset + Processor.pageSize; i++) {
+            if (memory[i] != 0) {
+                byte[] out = new byte[Processor.pageSize / 2];
+                deflater.reset();
+                deflater.setInput(memory, offset, Processor.pageSize);
+                deflater.finish();
+                int length = deflater.deflate(out);
+                if (!deflater.finished())
+                    return null;
+                image = Arrays.copyOf(out, length);
+                break;
+            }
+        }
+
+        swapLock.acquire();
+        boolean fits = compressedBytes + image.length <= compressedSwapBytes;
+        if (fits)
+            compressedBytes += image.length;
+        swapLock.release();
+        return fits ? image : null;
+    }
+
+    /**
+     * Restore a page from an image made by <tt>compressPage()</tt> and free
+     * the image.
+     *
+     * @param image the compressed image.
+     * @param memory the array to hold the page.
+     * @param offset the offset of the page in <i>memory</i>.
+     */
+    public static void decompressPage(byte[] image, byte[] memory, int offset) {
+        inflatePage(image, memory, offset);
+        freeCompressedPage(image);
+    }
+
+    /**
+     * Restore a page from an image made by <tt>compressPage()</tt>, keeping
+     * the image.
+     */
+    public static void inflatePage(byte[] image, byte[] memory, int offset) {
+        if (image.length == 0) {
+            Arrays.fill(memory, offset, offset + Processor.pageSize, (byte) 0);
+        } else {
+            inflater.reset();
+            inflater.setInput(image);
+            try {
+                Lib.assertTrue(inflater.inflate(memory, offset, Processor.pageSize) == Processor.pageSize);
+            } catch (DataFormatException e) {
+                Lib.assertNotReached("corrupt compressed page");
+            }
+        }
+    }
+
+    /**
+     * Account for one more process holding an image made by
+     * <tt>compressPage()</tt>. Images are never changed, so a forked process
+     * takes its parent's; each holder frees it once.
+     */
+    public static void shareCompressedPage(byte[] image) {
+        swapLock.acquire();
+        compressedBytes += image.length;
+        swapLock.release();
+    }
+
+    /**
+     * Free an image made by <tt>compressPage()</tt> without restoring it.
+     */
+    public static void freeCompressedPage(byte[] image) {
+        swapLock.acquire();
+        compressedBytes -= image.length;
+        swapLock.release();
+    }
+
+    /**
+     * The most bytes of compressed pages to keep in memory; 0 disables the
+     * compressed tier.
+     */
+    public static int compressedSwapBytes;
+
+    /** The bytes of compressed pages currently held. */
+    private static int compressedBytes = 0;
 
-    public static Condition CV;
+    private static final byte[] zeroImage = new byte[0];
 
-    public static int pinCount;
+    private static Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private static Inflater inflater = new Inflater();
+
+    /**
+     * Free a run returned by <tt>allocateSwapRun()</tt>. A page another
+     * process also holds stays allocated until that process frees it too.
+     *
+     * @param start the first swap page of the run.
+     * @param count the number of pages.
+     */
+    public static void freeSwapRun(int start, int count) {
+        for (int spn = start; spn < start + count; spn++)
+            freeSwapPage(spn);
+    }
+
+    /**
+     * Give one more process a hold on swap page <i>spn</i>, so that a forked
+     * process can read a page its parent saved without copying it.
+     */
+    public static void shareSwapPage(int spn) {
+        swapLock.acquire();
+        Integer holders = swapShares.get(spn);
+        swapShares.put(spn, (holders == null) ? 2 : holders + 1);
+        swapLock.release();
+    }
+
+    /**
+     * Let go of swap page <i>spn</i>, freeing it if no other process holds
+     * it.
+     */
+    public static void freeSwapPage(int spn) {
+        swapLock.acquire();
+        Integer holders = swapShares.remove(spn);
+        if (holders == null)
+            swapMap.clear(spn);
+        else if (holders > 2)
+            swapShares.put(spn, holders - 1);
+        swapLock.release();
+    }
+
+    /**
+     * Return <tt>true</tt> if any of <i>count</i> swap pages from
+     * <i>start</i> is held by more than one process, and so must not be
+     * written.
+     */
+    public static boolean isSwapRunShared(int start, int count) {
+        swapLock.acquire();
+        boolean shared = false;
+        for (int spn = start; spn < start + count; spn++)
+            shared |= swapShares.containsKey(spn);
+        swapLock.release();
+        return shared;
+    }
 
     protected class Information{
       public VMProcess process;
       public TranslationEntry entry;
-      public boolean pin;
+      /** The number of kernel copies to or from this frame in progress. */
+      public int pin;
+      /**
+       * The frame is being evicted or filled. While busy, <tt>entry</tt> (if
+       * not null) is the page whose contents are still being written out.
+       */
+      public boolean busy;
+      /**
+       * The number of processes that faulted this page in as one of their
+       * last two page faults. Such a page is not evicted while waiting for
+       * any other frame could free one.
+       */
+      public int recent;
+      /**
+       * For a frame in <tt>sharedText</tt>, its key and the entries of every
+       * process mapping it; <tt>entry</tt> is one of them. Otherwise null.
+       */
+      public String sharedKey;
+      public LinkedList<TranslationEntry> sharers;
+      /**
+       * For a copy-on-write frame left by <tt>fork()</tt>, the process owning
+       * each entry in <tt>sharers</tt>, in the same order. Otherwise null.
+       */
+      public LinkedList<VMProcess> owners;
 
-      public Information(VMProcess process, TranslationEntry entry, boolean pin){
+      public Information(VMProcess process, TranslationEntry entry, int pin){
         this.process = process;
         this.entry = entry;
         this.pin = pin;
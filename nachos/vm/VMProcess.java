@@ -1,5 +1,8 @@
 package nachos.vm;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -46,14 +49,139 @@ public class VMProcess extends UserProcess {
 		}
 		// Part 1-2 Allocate physical page frames but don't load
 		// Part 2-1 Don't allocate physical pages here!
+		// Record where every page comes from so a fault needs no search;
+		// pages outside the COFF are the zero-filled stack and arguments
+		this.descriptors = new PageDescriptor[numPages];
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+				this.descriptors[vpn] = new PageDescriptor(section, i);
+				// read-only pages can be shared with other processes
+				if (section.isReadOnly() && section.isInitialzed())
+					this.descriptors[vpn].sharedKey = executableId + "#" + vpn;
+			}
+		}
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (this.descriptors[vpn] == null)
+				this.descriptors[vpn] = new PageDescriptor(null, 0);
+		}
+		// files mapped by mmap() go above the stack and arguments
+		this.mappedBase = numPages;
+		// swap space is reserved a chunk at a time, the first time a page in
+		// the chunk is written out
+		this.swapChunks = new int[(numPages + VMKernel.swapCluster - 1) / VMKernel.swapCluster];
+		Arrays.fill(this.swapChunks, -1);
 		return true;
 	}
 
 	/**
-	 * Release any resources allocated by <tt>loadSections()</tt>.
+	 * Release any resources allocated by <tt>loadSections()</tt>. Mapped files
+	 * are written back and closed, frames go back to the free list and swap
+	 * pages to the swap allocator.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		VMKernel.frameLock.acquire();
+		// an eviction may still be writing one of our pages to swap
+		while (isPagingOut(null))
+			VMKernel.frameReleased.sleep();
+		while (!this.mappings.isEmpty())
+			this.unmap(this.mappings.getFirst());
+		for (TranslationEntry entry : this.recentFaults) {
+			if (isMapped(entry))
+				VMKernel.IPT[entry.ppn].recent--;
+		}
+		for (int i = 0; i < this.numPages; ++i) {
+			TranslationEntry entry = this.pageTable[i];
+			if (entry.valid && entry.ppn == VMKernel.zeroPage) {
+				entry.valid = false;
+			} else if (entry.valid && VMKernel.IPT[entry.ppn].sharers != null
+					&& !this.unshare(entry)) {
+				entry.valid = false;
+			} else if (entry.valid) {
+				entry.valid = false;
+				releaseFrame(entry.ppn);
+			}
+		}
+		for (int i = 0; i < this.numPages; ++i) {
+			if (this.descriptors[i].compressed != null)
+				VMKernel.freeCompressedPage(this.descriptors[i].compressed);
+			this.setSwapPage(i, -1);
+		}
+		for (int chunk = 0; chunk < this.swapChunks.length; ++chunk) {
+			if (this.swapChunks[chunk] != -1)
+				VMKernel.freeSwapRun(this.swapChunks[chunk], VMKernel.swapCluster);
+		}
+		this.dropReadAhead();
+		VMKernel.frameReleased.wakeAll();
+		VMKernel.frameLock.release();
+	}
+
+	/**
+	 * Give this process, being forked from <i>parent</i>, the parent's address
+	 * space. Resident pages are not copied: both processes map the frame
+	 * read-only until one of them writes it. Pages the parent has saved in
+	 * swap or compressed are not read either: the child holds the same swap
+	 * page or image, and a process writing out a page never reuses a swap
+	 * page still held by another. Files the parent mapped with
+	 * <tt>mmap()</tt> are not inherited.
+	 * 
+	 * @return <tt>true</tt> if successful.
+	 */
+	protected boolean copyAddressSpace(UserProcess parent) {
+		VMProcess source = (VMProcess) parent;
+		this.numPages = source.mappedBase;
+		this.loadSections();
+
+		VMKernel.frameLock.acquire();
+		while (source.isPagingOut(null))
+			VMKernel.frameReleased.sleep();
+		for (int vpn = 0; vpn < this.numPages; vpn++) {
+			TranslationEntry entry = source.pageTable[vpn];
+			PageDescriptor page = source.descriptors[vpn];
+			if (!entry.valid) {
+				if (page.prefetched != null) {
+					this.descriptors[vpn].prefetched = page.prefetched.clone();
+				} else if (page.compressed != null) {
+					VMKernel.shareCompressedPage(page.compressed);
+					this.descriptors[vpn].compressed = page.compressed;
+				} else if (page.swapPage != -1) {
+					VMKernel.shareSwapPage(page.swapPage);
+					this.descriptors[vpn].swapPage = page.swapPage;
+				}
+				continue;
+			}
+			if (entry.ppn == VMKernel.zeroPage) {
+				this.pageTable[vpn] = new TranslationEntry(vpn, VMKernel.zeroPage, true, true, true, false);
+				continue;
+			}
+			VMKernel.Information frame = VMKernel.IPT[entry.ppn];
+			if (frame.sharers == null && entry.readOnly)
+				continue; // text that missed sharedText; the child loads its own
+			if (frame.sharers == null) {
+				frame.sharers = new LinkedList<TranslationEntry>();
+				frame.sharers.add(entry);
+				frame.owners = new LinkedList<VMProcess>();
+				frame.owners.add(source);
+				frame.process = null;
+				entry.readOnly = true;
+			}
+			// the child must save the page itself unless it can reload it
+			// from the executable or the parent's swap page
+			boolean saved = !entry.dirty && (page.swapPage != -1
+					|| page.section != null && page.section.isInitialzed());
+			if (saved && page.swapPage != -1) {
+				VMKernel.shareSwapPage(page.swapPage);
+				this.descriptors[vpn].swapPage = page.swapPage;
+			}
+			this.pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, true, true,
+					entry.used, !saved && frame.owners != null);
+			frame.sharers.add(this.pageTable[vpn]);
+			if (frame.owners != null)
+				frame.owners.add(this);
+		}
+		VMKernel.frameLock.release();
+		return true;
 	}
 
 	/**
@@ -70,7 +198,21 @@ public class VMProcess extends UserProcess {
 		case Processor.exceptionPageFault:
 			// Part 1-3 Machine will trigger page fault exception
 			// Part 1-4 Modify handle Exception to handle this!
-			handlePageFault(processor.readRegister(Processor.regBadVAddr));
+			if (!handlePageFault(processor.readRegister(Processor.regBadVAddr)))
+				super.handleException(cause); // a page removed by munmap()
+			break;
+		case Processor.exceptionReadOnly:
+			// a store to a page still mapped to the zero frame, or shared
+			// with a forked process
+			int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+			if (vpn >= 0 && vpn < this.numPages && this.pageTable[vpn].valid
+					&& (this.pageTable[vpn].ppn == VMKernel.zeroPage
+							|| isCopyOnWrite(this.pageTable[vpn]))) {
+				faultIn(vpn, false, true);
+				keepResident(vpn);
+				break;
+			}
+			super.handleException(cause);
 			break;
 		default:
 			super.handleException(cause);
@@ -78,137 +220,271 @@ public class VMProcess extends UserProcess {
 		}
 	}
 
+	/**
+	 * Handle a syscall exception. A <tt>VMProcess</tt> adds file mappings to
+	 * the syscalls of <tt>UserProcess</tt>:
+	 * 
+	 * <table>
+	 * <tr>
+	 * <td>syscall#</td>
+	 * <td>syscall prototype</td>
+	 * </tr>
+	 * <tr>
+	 * <td>10</td>
+	 * <td><tt>char *mmap(int fd, int offset, int length);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  munmap(char *address);</tt></td>
+	 * </tr>
+	 * </table>
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+		case syscallMmap:
+			return handleMmap(a0, a1, a2);
+		case syscallMunmap:
+			return handleMunmap(a0);
+		default:
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+
+	/**
+	 * Map <i>length</i> bytes of the file open as <i>fd</i>, from
+	 * <i>offset</i>, into new pages at the top of the address space. Nothing
+	 * is read until a page is touched.
+	 * 
+	 * @return the address of the mapping, or 0 on error.
+	 */
+	private int handleMmap(int fd, int offset, int length) {
+		if (fd < 0 || fd >= this.openFileTable.length || this.openFileTable[fd] == null)
+			return 0;
+		// the console has no length and cannot be mapped
+		if (this.openFileTable[fd].length() < 0 || offset < 0 || offset % pageSize != 0 || length <= 0)
+			return 0;
+		int count = (length - 1) / pageSize + 1;
+		if (count > Integer.MAX_VALUE / pageSize - this.numPages)
+			return 0;
+		// a handle of its own keeps the mapping valid after fd is closed
+		OpenFile file = ThreadedKernel.fileSystem.open(this.openFileTable[fd].getName(), false);
+		if (file == null)
+			return 0;
+
+		VMKernel.frameLock.acquire();
+		Mapping mapping = new Mapping(file, offset, length, this.numPages);
+		this.resize(this.numPages + mapping.numPages);
+		for (int vpn = mapping.firstVPN; vpn < this.numPages; vpn++) {
+			this.descriptors[vpn] = new PageDescriptor(null, 0);
+			this.descriptors[vpn].mapping = mapping;
+		}
+		this.mappings.add(mapping);
+		VMKernel.frameLock.release();
+		return mapping.firstVPN * pageSize;
+	}
+
+	/**
+	 * Remove the mapping starting at <i>vaddr</i>.
+	 * 
+	 * @return 0 on success, or -1 if no mapping starts at <i>vaddr</i>.
+	 */
+	private int handleMunmap(int vaddr) {
+		for (Mapping mapping : this.mappings) {
+			if (mapping.firstVPN * pageSize == vaddr) {
+				VMKernel.frameLock.acquire();
+				this.unmap(mapping);
+				VMKernel.frameLock.release();
+				return 0;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Write back and free the resident pages of <i>mapping</i>, leave a hole
+	 * where it was, and close its file. Holes at the top of the address space
+	 * are given back. Called with frameLock held.
+	 */
+	private void unmap(Mapping mapping) {
+		for (int vpn = mapping.firstVPN; vpn < mapping.firstVPN + mapping.numPages; vpn++) {
+			TranslationEntry entry = this.pageTable[vpn];
+			// an eviction may still be writing the page back
+			while (!entry.valid && isPagingOut(entry))
+				VMKernel.frameReleased.sleep();
+			if (entry.valid && entry.dirty) {
+				VMKernel.IPT[entry.ppn].busy = true;
+				this.writeMappedPage(vpn);
+				VMKernel.IPT[entry.ppn].busy = false;
+			}
+			if (entry.valid) {
+				entry.valid = false;
+				releaseFrame(entry.ppn);
+			}
+			this.descriptors[vpn] = null;
+		}
+		this.mappings.remove(mapping);
+		mapping.file.close();
+
+		int pages = this.numPages;
+		while (pages > this.mappedBase && this.descriptors[pages - 1] == null)
+			pages--;
+		if (pages < this.numPages)
+			this.resize(pages);
+		VMKernel.frameReleased.wakeAll();
+	}
+
+	/**
+	 * Grow or shrink the address space to <i>pages</i> pages. New pages are
+	 * invalid and have no descriptor; pages dropped must not be resident.
+	 * Called with frameLock held, by the process itself.
+	 */
+	private void resize(int pages) {
+		int old = this.numPages;
+		this.pageTable = Arrays.copyOf(this.pageTable, pages);
+		this.descriptors = Arrays.copyOf(this.descriptors, pages);
+		for (int vpn = old; vpn < pages; vpn++)
+			this.pageTable[vpn] = new TranslationEntry(vpn, vpn, false, false, false, false);
+		this.numPages = pages;
+		Machine.processor().setPageTable(this.pageTable);
+	}
+
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-		VMKernel.vmlock.acquire();
-		if (data == null || vaddr < 0) {
-			VMKernel.vmlock.release();
+		if (data == null || vaddr < 0)
 			return 0;
-		}
 		byte[] memory = Machine.processor().getMemory();
 		int successRead = 0;
 		while (length > 0) {
-			if (vaddr >= numPages * pageSize) {
-				VMKernel.vmlock.release();
+			if (vaddr >= numPages * pageSize)
 				return successRead;
-			}
 			int vpn = Processor.pageFromAddress(vaddr);
 			int p_offset = Processor.offsetFromAddress(vaddr);
 			int readLen = Math.min(pageSize - p_offset, length);
-			if (this.pageTable[vpn].valid == false) {
-				handlePageFault(vaddr);
-				VMKernel.pinCount++;
-				if (this.pageTable[vpn].valid == false) {
-					// not allocated
-					VMKernel.pinCount--;
-					VMKernel.vmlock.release();
-					return successRead;
-				}
-			} else {
-				VMKernel.pinCount++;
-			}
-			// After getting the valid page in the pageFault
-			// We have finish the mapping between pageTable and Memory
-			// synchronized between Information.TLE and this.PageTable
-			pageTable[vpn].used = true;
-			VMKernel.IPT[pageTable[vpn].ppn].entry = pageTable[vpn];
-			VMKernel.IPT[pageTable[vpn].ppn].pin = true;
-			int paddr = pageTable[vpn].ppn * pageSize + p_offset;
-			if (paddr < 0 || paddr >= memory.length) {
-				// wake up a process that waits for this page frame
-				VMKernel.pinCount--;
-				VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-				VMKernel.CV.wake();
-				VMKernel.vmlock.release();
-				return successRead;
-			}
-			try {
-				System.arraycopy(memory, paddr, data, offset, readLen);
-			} catch (Exception e) {
-				// wake up a process that waits for this page frame
-				VMKernel.pinCount--;
-				VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-				VMKernel.CV.wake();
-				VMKernel.vmlock.release();
+			// only the frame being copied is held; other processes keep paging
+			int ppn = pinPage(vpn, false);
+			if (ppn == -1)
 				return successRead;
-			}
-			VMKernel.pinCount--;
-			VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-			VMKernel.CV.wake();
+			System.arraycopy(memory, ppn * pageSize + p_offset, data, offset, readLen);
+			unpinPage(ppn);
 			vaddr += readLen;
 			successRead += readLen;
 			length -= readLen;
 			offset += readLen;
 		}
-		VMKernel.vmlock.release();
 		return successRead;
 	}
 
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-		VMKernel.vmlock.acquire();
-		if (vaddr < 0) {
-			VMKernel.vmlock.release();
+
+		if (vaddr < 0)
 			return 0;
-		}
 		byte[] memory = Machine.processor().getMemory();
 		int sucessWrite = 0;
 		while (length > 0) {
+			if (vaddr >= numPages * pageSize)
+				return sucessWrite;
 			int vpn = Processor.pageFromAddress(vaddr);
 			int p_offset = Processor.offsetFromAddress(vaddr);
-			if (this.pageTable[vpn].readOnly) {
-				VMKernel.vmlock.release();
-				return sucessWrite;
-			}
-			if (!this.pageTable[vpn].valid) {
-				handlePageFault(vaddr);
-				VMKernel.pinCount++;
-				if (!this.pageTable[vpn].valid) {
-					// not allocated
-					VMKernel.pinCount--;
-					VMKernel.vmlock.release();
-					return sucessWrite;
-				}
-			} else {
-				VMKernel.pinCount++;
-			}
-			pageTable[vpn].used = true;
-			pageTable[vpn].dirty = true;
-			// synchronized between Information.TLE and this.PageTable
-			VMKernel.IPT[pageTable[vpn].ppn].entry = pageTable[vpn];
-			VMKernel.IPT[pageTable[vpn].ppn].pin = true;
-			VMKernel.pinCount++;
 			int writeLen = Math.min(length, pageSize - p_offset);
-			int paddr = this.pageTable[vpn].ppn * pageSize + p_offset;
-			if (paddr < 0 || paddr >= memory.length) {
-				VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-				VMKernel.pinCount--;
-				VMKernel.CV.wake();
-				VMKernel.vmlock.release();
+			int ppn = pinPage(vpn, true);
+			if (ppn == -1)
 				return sucessWrite;
-			}
-			try {
-				System.arraycopy(data, offset, memory, paddr, writeLen);
-			} catch (Exception e) {
-				VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-				VMKernel.pinCount--;
-				VMKernel.CV.wake();
-				VMKernel.vmlock.release();
-				return sucessWrite;
-			}
-			VMKernel.IPT[pageTable[vpn].ppn].pin = false;
-			VMKernel.pinCount--;
-			VMKernel.CV.wake();
+			System.arraycopy(data, offset, memory, ppn * pageSize + p_offset, writeLen);
+			unpinPage(ppn);
 			length -= writeLen;
 			vaddr += writeLen;
 			offset += writeLen;
 			sucessWrite += writeLen;
 		}
-		VMKernel.vmlock.release();
 		return sucessWrite;
 	}
 
+	/**
+	 * Make <i>vpn</i> resident and pin its frame so it cannot be evicted while
+	 * the kernel copies to or from it.
+	 * 
+	 * @param vpn the virtual page to pin.
+	 * @param write <tt>true</tt> if the page is about to be modified.
+	 * @return the pinned physical page, or -1 if the page cannot be accessed.
+	 */
+	private int pinPage(int vpn, boolean write) {
+		if (this.descriptors[vpn] == null)
+			return -1;
+		int ppn = faultIn(vpn, true, write);
+		TranslationEntry entry = this.pageTable[vpn];
+		if (write && entry.readOnly) {
+			unpinPage(ppn);
+			return -1;
+		}
+		entry.used = true;
+		if (write)
+			entry.dirty = true;
+		return ppn;
+	}
+
+	/**
+	 * Pin the frames behind a syscall buffer. Only the first page may be
+	 * faulted in; the batch then takes the following pages that are already
+	 * resident, so a process never waits for a frame while holding pins.
+	 */
+	protected OpenFile.Segment[] pinSegments(int vaddr, int length, boolean write) {
+		LinkedList<OpenFile.Segment> segments = new LinkedList<OpenFile.Segment>();
+		// leave most of memory to other processes while the I/O runs
+		int maxPins = Math.max(1, Machine.processor().getNumPhysPages() / 4);
+		while (length > 0 && vaddr >= 0 && vaddr < numPages * pageSize && segments.size() < maxPins) {
+			int vpn = Processor.pageFromAddress(vaddr);
+			int p_offset = Processor.offsetFromAddress(vaddr);
+			int segLen = Math.min(pageSize - p_offset, length);
+			int ppn = segments.isEmpty() ? pinPage(vpn, write) : pinResident(vpn, write);
+			if (ppn == -1)
+				break;
+			segments.add(new OpenFile.Segment(ppn, p_offset, segLen));
+			vaddr += segLen;
+			length -= segLen;
+		}
+		return segments.toArray(new OpenFile.Segment[segments.size()]);
+	}
+
+	protected void unpinSegments(OpenFile.Segment[] segments) {
+		VMKernel.frameLock.acquire();
+		for (OpenFile.Segment segment : segments)
+			VMKernel.IPT[segment.ppn].pin--;
+		VMKernel.frameReleased.wakeAll();
+		VMKernel.frameLock.release();
+	}
+
+	/**
+	 * Pin <i>vpn</i> if it is resident and can be accessed without a fault.
+	 * 
+	 * @return the pinned physical page, or -1.
+	 */
+	private int pinResident(int vpn, boolean write) {
+		VMKernel.frameLock.acquire();
+		TranslationEntry entry = this.pageTable[vpn];
+		if (this.descriptors[vpn] == null || !entry.valid || (write && entry.readOnly)) {
+			VMKernel.frameLock.release();
+			return -1;
+		}
+		VMKernel.IPT[entry.ppn].pin++;
+		entry.used = true;
+		if (write)
+			entry.dirty = true;
+		VMKernel.frameLock.release();
+		return entry.ppn;
+	}
+
+	/**
+	 * Release a frame pinned by <tt>pinPage()</tt>.
+	 */
+	private void unpinPage(int ppn) {
+		VMKernel.frameLock.acquire();
+		VMKernel.IPT[ppn].pin--;
+		VMKernel.frameReleased.wakeAll();
+		VMKernel.frameLock.release();
+	}
+
 //	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 //		VMKernel.vmlock.acquire();
 //		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
@@ -267,141 +543,675 @@ public class VMProcess extends UserProcess {
 //		return sucessTransfer;
 //	}
 
-	protected void handlePageFault(int badVaddr) {
+	/**
+	 * Bring in the page at <i>badVaddr</i>.
+	 * 
+	 * @return <tt>false</tt> if the address lies in a hole left by
+	 * <tt>munmap()</tt>.
+	 */
+	protected boolean handlePageFault(int badVaddr) {
+		int badVpn = Processor.pageFromAddress(badVaddr);
+		if (badVpn >= 0 && badVpn < this.numPages) {
+			if (this.descriptors[badVpn] == null)
+				return false;
+			faultIn(badVpn, false, false);
+			keepResident(badVpn);
+		}
+		return true;
+	}
 
-		UserKernel.mutex.acquire();
+	/**
+	 * Keep <i>vpn</i>, just faulted in, resident along with the page faulted in
+	 * before it. One instruction can touch two pages, and under heavy paging
+	 * other processes could otherwise evict one while this process waits for
+	 * the other, so that no process ever completes an instruction.
+	 */
+	private void keepResident(int vpn) {
+		VMKernel.frameLock.acquire();
+		if (isMapped(this.recentFaults[1]))
+			VMKernel.IPT[this.recentFaults[1].ppn].recent--;
+		this.recentFaults[1] = this.recentFaults[0];
+		this.recentFaults[0] = this.pageTable[vpn];
+		if (isMapped(this.recentFaults[0]))
+			VMKernel.IPT[this.recentFaults[0].ppn].recent++;
+		VMKernel.frameLock.release();
+	}
 
-		// get vpn
-		int badVpn = Processor.pageFromAddress(badVaddr);
-		int coffVpn = 0;
+	/**
+	 * Return <tt>true</tt> if <i>entry</i> still maps the frame it names, so a
+	 * count kept on the frame for it is still valid. Called with frameLock held.
+	 */
+	private static boolean isMapped(TranslationEntry entry) {
+		if (entry == null || !entry.valid)
+			return false;
+		VMKernel.Information frame = VMKernel.IPT[entry.ppn];
+		return frame.entry == entry || (frame.sharers != null && frame.sharers.contains(entry));
+	}
 
-		for (int s = 0; s < this.coff.getNumSections(); ++s) {
+	/**
+	 * Bring <i>vpn</i> into memory if it is not already resident. The IPT is
+	 * locked only while a frame is chosen and while the new mapping is
+	 * installed; the victim's write-back and the page-in run with just the
+	 * target frame marked busy, so independent processes can fault in parallel.
+	 * 
+	 * <p>
+	 * A zero-fill page is mapped read-only to the shared zero frame until it
+	 * is written; only then does it get a frame of its own. The same goes for
+	 * a page shared with a forked process, which is copied on its first write.
+	 * 
+	 * @param vpn the virtual page to load.
+	 * @param pin <tt>true</tt> to return with the frame pinned.
+	 * @param write <tt>true</tt> if the page is about to be written.
+	 * @return the physical page holding <i>vpn</i>.
+	 */
+	private int faultIn(int vpn, boolean pin, boolean write) {
+		VMKernel.frameLock.acquire();
+		// another process may be evicting this page; wait for its write-back
+		while (!this.pageTable[vpn].valid && isPagingOut(this.pageTable[vpn]))
+			VMKernel.frameReleased.sleep();
+		TranslationEntry current = this.pageTable[vpn];
+		boolean copy = current.valid && write && isCopyOnWrite(current);
+		if (copy && VMKernel.IPT[current.ppn].sharers.size() == 1) {
+			// every other process sharing the page has exited or copied it
+			this.unshare(current);
+			VMKernel.IPT[current.ppn].process = this;
+			VMKernel.IPT[current.ppn].entry = current;
+			current.readOnly = false;
+			copy = false;
+		}
+		if (current.valid && !copy && !(write && current.ppn == VMKernel.zeroPage)) {
+			if (pin)
+				VMKernel.IPT[current.ppn].pin++;
+			VMKernel.frameLock.release();
+			return current.ppn;
+		}
+		String sharedKey = this.descriptors[vpn].sharedKey;
+		if (copy) {
+			// first write to a page shared with a forked process; copied below
+		} else if (current.valid) {
+			// first write to a page sharing the zero frame
+			current.valid = false;
+		} else if (!write && this.isZeroFill(vpn)) {
+			this.pageTable[vpn] = new TranslationEntry(vpn, VMKernel.zeroPage, true, true, true, false);
+			if (pin)
+				VMKernel.IPT[VMKernel.zeroPage].pin++;
+			VMKernel.frameLock.release();
+			return VMKernel.zeroPage;
+		} else if (sharedKey != null && VMKernel.sharedText.containsKey(sharedKey)) {
+			// another process running this program already loaded the page
+			int ppn = VMKernel.sharedText.get(sharedKey);
+			VMKernel.Information frame = VMKernel.IPT[ppn];
+			this.pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true, true, false);
+			frame.sharers.add(this.pageTable[vpn]);
+			if (pin)
+				frame.pin++;
+			VMKernel.frameLock.release();
+			return ppn;
+		}
 
-			CoffSection section = this.coff.getSection(s);
-			for (int i = 0; i < section.getLength(); ++i) {
-				int vpn = section.getFirstVPN() + i;
-				coffVpn = vpn;
-
-				if (vpn == badVpn) {
-					// Clock algorithm
-					int next_ppn = (UserKernel.freePhyPages.isEmpty()) ? this.evictPage()
-							: UserKernel.freePhyPages.removeFirst();
-
-					if (!this.pageTable[vpn].dirty) {
-						section.loadPage(i, next_ppn); // load to memory
-						boolean readOnly = section.isReadOnly();
-						// the used bit should be false
-						this.pageTable[vpn] = new TranslationEntry(vpn, next_ppn, true, readOnly, true, false);
-					} else {
-						this.handleDirtyPage(vpn, next_ppn);
-					}
-					VMKernel.IPT[next_ppn].process = this;
-					VMKernel.IPT[next_ppn].entry = this.pageTable[vpn];
+		int ppn;
+		while ((ppn = takeFreePage()) == -1 && (ppn = this.evictPage()) == -1)
+			;
+		VMKernel.Information frame = VMKernel.IPT[ppn];
+		frame.busy = true;
+		frame.recent = 0;
+		TranslationEntry victim = frame.entry;
+		if (frame.owners != null) {
+			// shared since a fork; each process without another copy of the
+			// page saves its own
+			for (TranslationEntry sharer : frame.sharers)
+				sharer.valid = false;
+			for (int i = 0; i < frame.sharers.size(); i++) {
+				TranslationEntry sharer = frame.sharers.get(i);
+				if (sharer.dirty) {
+					frame.process = frame.owners.get(i);
+					frame.entry = sharer;
+					frame.process.pageOut(sharer.vpn);
 				}
 			}
+			VMKernel.frameReleased.wakeAll();
+			frame.sharers = null;
+			frame.owners = null;
+			frame.process = null;
+			frame.entry = null;
+		} else if (frame.sharers != null) {
+			// clean and read-only, so just unmap it from everyone
+			for (TranslationEntry sharer : frame.sharers)
+				sharer.valid = false;
+			VMKernel.sharedText.remove(frame.sharedKey);
+			frame.sharedKey = null;
+			frame.sharers = null;
+			frame.process = null;
+			frame.entry = null;
+		} else if (victim != null) {
+			victim.valid = false; // process A -> swap file, no longer valid
+			if (victim.dirty) {
+				frame.process.pageOut(victim.vpn);
+				VMKernel.frameReleased.wakeAll();
+			}
+			frame.process = null;
+			frame.entry = null;
+		}
+		TranslationEntry entry = null;
+		if (copy && !current.valid) {
+			// the shared frame was evicted while we waited; load our own copy
+			copy = false;
+			while (isPagingOut(current))
+				VMKernel.frameReleased.sleep();
+		} else if (copy) {
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, current.ppn * pageSize, memory, ppn * pageSize, pageSize);
+			entry = new TranslationEntry(vpn, ppn, true, false, true, true);
+			current.valid = false;
+			if (this.unshare(current))
+				releaseFrame(current.ppn);
+		}
+		int ahead = copy ? 0 : this.readAheadWindow(vpn);
+		VMKernel.frameLock.release();
+
+		if (!copy)
+			entry = this.pageIn(vpn, ppn, ahead);
+
+		VMKernel.frameLock.acquire();
+		this.pageTable[vpn] = entry;
+		frame.process = this;
+		frame.entry = entry;
+		frame.pin = pin ? 1 : 0;
+		frame.busy = false;
+		if (sharedKey != null && !VMKernel.sharedText.containsKey(sharedKey)) {
+			VMKernel.sharedText.put(sharedKey, ppn);
+			frame.sharedKey = sharedKey;
+			frame.sharers = new LinkedList<TranslationEntry>();
+			frame.sharers.add(entry);
+			frame.process = null;
 		}
+		VMKernel.replacementPolicy.frameLoaded(ppn,
+				(sharedKey != null) ? sharedKey : this.descriptors[vpn]);
+		VMKernel.frameReleased.wakeAll();
+		VMKernel.frameLock.release();
+		return ppn;
+	}
 
-		Lib.assertTrue(coffVpn + 1 == this.numPages - 9);
+	/**
+	 * Write the evicted page <i>vpn</i> to swap, or to its file if it was
+	 * mapped by <tt>mmap()</tt>. Swapped pages are compressed in memory if the
+	 * compressed tier will take it, else to the swap file. Dirty resident pages
+	 * next to it in the same swap chunk are cleaned by the same write, so one
+	 * <tt>swapFile.write</tt> covers the whole run. Called with frameLock held;
+	 * the lock is released for a file write and held again on return.
+	 */
+	private void pageOut(int vpn) {
+		if (this.descriptors[vpn].mapping != null) {
+			this.writeMappedPage(vpn);
+			return;
+		}
 
-		for (int i = this.numPages - 9; i < this.numPages; ++i) {
+		// a page that compresses well stays in memory and costs no I/O
+		byte[] memory = Machine.processor().getMemory();
+		byte[] image = VMKernel.compressPage(memory, this.pageTable[vpn].ppn * pageSize);
+		if (image != null) {
+			this.descriptors[vpn].compressed = image;
+			this.setSwapPage(vpn, -1); // any copy in swapFile is stale
+			return;
+		}
 
-			int vpn = i;
-			if (vpn == badVpn) {
-				int next_ppn = (UserKernel.freePhyPages.isEmpty()) ? this.evictPage()
-						: UserKernel.freePhyPages.removeFirst();
+		int low = vpn - vpn % VMKernel.swapCluster;
+		int high = Math.min(low + VMKernel.swapCluster, this.mappedBase) - 1;
+		int first = vpn, last = vpn;
+		while (first > low && isCleanable(first - 1))
+			first--;
+		while (last < high && isCleanable(last + 1))
+			last++;
 
-				if (!this.pageTable[vpn].dirty)
-					this.fillZero(vpn, next_ppn);
-				else
-					this.handleDirtyPage(vpn, next_ppn);
+		this.unshareChunk(vpn / VMKernel.swapCluster);
 
-				VMKernel.IPT[next_ppn].process = this;
-				// sync IPT and pageTable
-				VMKernel.IPT[next_ppn].entry = pageTable[vpn];
+		// the neighbours stay mapped but must not be evicted until the write
+		// lands; a store meanwhile just sets the dirty bit again
+		byte[] buf = new byte[(last - first + 1) * pageSize];
+		for (int v = first; v <= last; v++) {
+			TranslationEntry entry = this.pageTable[v];
+			if (v != vpn) {
+				VMKernel.IPT[entry.ppn].busy = true;
+				entry.dirty = false;
 			}
+			System.arraycopy(memory, entry.ppn * pageSize, buf, (v - first) * pageSize, pageSize);
+		}
+		int spn = this.swapPageFor(first);
+		this.setSwapPage(vpn, spn + (vpn - first));
+		VMKernel.frameLock.release();
+
+		VMKernel.swapFile.write(spn * pageSize, buf, 0, buf.length);
+		for (int v = first; v <= last; v++)
+			Machine.incrNumSwapWrites();
 
+		VMKernel.frameLock.acquire();
+		for (int v = first; v <= last; v++) {
+			if (v != vpn) {
+				this.setSwapPage(v, spn + (v - first));
+				VMKernel.IPT[this.pageTable[v].ppn].busy = false;
+			}
 		}
+	}
 
-		UserKernel.mutex.release();
+	/**
+	 * Return <tt>true</tt> if <i>vpn</i> is a dirty resident page that
+	 * <tt>pageOut()</tt> may write alongside its neighbour.
+	 */
+	private boolean isCleanable(int vpn) {
+		TranslationEntry entry = this.pageTable[vpn];
+		if (!entry.valid || !entry.dirty)
+			return false;
+		VMKernel.Information frame = VMKernel.IPT[entry.ppn];
+		return frame.pin == 0 && !frame.busy;
+	}
 
+	/**
+	 * Return the swap page reserved for <i>vpn</i>, reserving its chunk if
+	 * needed. Pages of a chunk are contiguous in the swap file.
+	 */
+	private int swapPageFor(int vpn) {
+		int chunk = vpn / VMKernel.swapCluster;
+		if (this.swapChunks[chunk] == -1)
+			this.swapChunks[chunk] = VMKernel.allocateSwapRun(VMKernel.swapCluster);
+		return this.swapChunks[chunk] + vpn % VMKernel.swapCluster;
 	}
 
-	/*
-	 * No free memory, need to evict a page Select a victim for replacement; BY
-	 * Clock Algorithm. It will return ppn
+	/**
+	 * Give <i>chunk</i> a new run of swap pages if another process holds any
+	 * page of its current one. Pages still saved in the old run keep their
+	 * swap pages, holding them as a forked process would. Called with
+	 * frameLock held.
 	 */
-	private int evictPage() {
+	private void unshareChunk(int chunk) {
+		int start = this.swapChunks[chunk];
+		if (start == -1 || !VMKernel.isSwapRunShared(start, VMKernel.swapCluster))
+			return;
+		this.swapChunks[chunk] = -1;
+		for (int i = 0; i < VMKernel.swapCluster; i++) {
+			int vpn = chunk * VMKernel.swapCluster + i;
+			if (vpn >= this.mappedBase || this.descriptors[vpn].swapPage != start + i)
+				VMKernel.freeSwapPage(start + i);
+		}
+	}
+
+	/**
+	 * Record that <i>vpn</i> is saved in swap page <i>spn</i>, or not in the
+	 * swap file if -1, letting go of any swap page it held outside its own
+	 * chunk. Called with frameLock held.
+	 */
+	private void setSwapPage(int vpn, int spn) {
+		int old = this.descriptors[vpn].swapPage;
+		int chunk = vpn / VMKernel.swapCluster;
+		boolean own = this.swapChunks[chunk] != -1
+				&& old == this.swapChunks[chunk] + vpn % VMKernel.swapCluster;
+		if (old != -1 && old != spn && !own)
+			VMKernel.freeSwapPage(old);
+		this.descriptors[vpn].swapPage = spn;
+	}
 
-		int totalPhyPages = Machine.processor().getNumPhysPages();
-		while (true) {
+	/**
+	 * Decide how many pages after <i>vpn</i> to read from swap along with it.
+	 * Read-ahead starts once a process faults on consecutive pages, and covers
+	 * the swapped-out pages that follow <i>vpn</i> in its swap chunk and in
+	 * the swap file, up to <tt>VMKernel.readAhead</tt> of them. Called with frameLock
+	 * held.
+	 */
+	private int readAheadWindow(int vpn) {
+		boolean sequential = (vpn == this.lastFault + 1);
+		this.lastFault = vpn;
+		PageDescriptor page = this.descriptors[vpn];
+		if (!sequential || page.swapPage == -1 || page.prefetched != null)
+			return 0;
 
-			if (VMKernel.IPT[VMKernel.victim].pin == true) {
-				if (VMKernel.pinCount == totalPhyPages)
-					VMKernel.CV.sleep();
+		int high = Math.min(vpn - vpn % VMKernel.swapCluster + VMKernel.swapCluster, this.mappedBase) - 1;
+		int ahead = 0;
+		while (ahead < VMKernel.readAhead && vpn + ahead < high) {
+			int next = vpn + ahead + 1;
+			if (this.pageTable[next].valid || this.descriptors[next].swapPage != page.swapPage + ahead + 1
+					|| this.descriptors[next].prefetched != null || isPagingOut(this.pageTable[next]))
+				break;
+			ahead++;
+		}
+		return ahead;
+	}
 
-				VMKernel.victim = (VMKernel.victim + 1) % totalPhyPages;
-				continue;
+	/**
+	 * Forget the pages left over from the last read-ahead, counting each one
+	 * that was never faulted on as a miss.
+	 */
+	private void dropReadAhead() {
+		for (int vpn = this.readAheadFirst; vpn <= this.readAheadLast; vpn++) {
+			if (this.descriptors[vpn].prefetched != null) {
+				this.descriptors[vpn].prefetched = null;
+				Machine.incrNumPrefetchMisses();
 			}
+		}
+		this.readAheadLast = -1;
+	}
 
-			if (VMKernel.IPT[VMKernel.victim].entry.used == false)
-				break;
+	/**
+	 * Fill <i>ppn</i> with the contents of <i>vpn</i>, from swap if it was
+	 * written out, else from the COFF or as a zeroed stack page. A mapped page
+	 * is read from its file.
+	 * 
+	 * @param ahead the number of following pages to read from swap as well.
+	 * @return the new (valid) translation entry for <i>vpn</i>.
+	 */
+	private TranslationEntry pageIn(int vpn, int ppn, int ahead) {
+		PageDescriptor page = this.descriptors[vpn];
+		if (page.mapping != null)
+			return this.readMappedPage(vpn, ppn);
+		if (page.prefetched != null) {
+			// brought in by an earlier read-ahead, whose swap copy stays valid,
+			// or inherited from fork() with no swap copy at all
+			System.arraycopy(page.prefetched, 0, Machine.processor().getMemory(),
+					Processor.makeAddress(ppn, 0), pageSize);
+			page.prefetched = null;
+			boolean inherited = page.swapPage == -1;
+			if (!inherited)
+				Machine.incrNumPrefetchHits();
+			return new TranslationEntry(vpn, ppn, true, false, true, inherited);
+		}
+		if (page.compressed != null) {
+			VMKernel.decompressPage(page.compressed, Machine.processor().getMemory(),
+					Processor.makeAddress(ppn, 0));
+			page.compressed = null;
+			// the image is gone, so the page must be saved again if evicted
+			return new TranslationEntry(vpn, ppn, true, false, true, true);
+		}
+		if (page.swapPage != -1)
+			return this.handleDirtyPage(vpn, ppn, page.swapPage, ahead);
+
+		if (page.section != null && page.section.isInitialzed()) {
+			page.section.loadPage(page.sectionPage, ppn); // load to memory
+			Machine.incrNumCOFFReads();
+			// the used bit should be false
+			return new TranslationEntry(vpn, ppn, true, page.section.isReadOnly(), true, false);
+		}
+
+		return this.fillZero(vpn, ppn);
+	}
+
+	/**
+	 * Fill <i>ppn</i> from the file mapped at <i>vpn</i>. Whatever lies past
+	 * the end of the mapping or the file reads as zeroes.
+	 */
+	private TranslationEntry readMappedPage(int vpn, int ppn) {
+		Mapping mapping = this.descriptors[vpn].mapping;
+		int index = vpn - mapping.firstVPN;
+		int length = Math.min(pageSize, mapping.length - index * pageSize);
+		byte[] memory = Machine.processor().getMemory();
+		int paddr = Processor.makeAddress(ppn, 0);
+		int read = mapping.file.read(mapping.offset + index * pageSize, memory, paddr, length);
+		Arrays.fill(memory, paddr + Math.max(read, 0), paddr + pageSize, (byte) 0);
+		return new TranslationEntry(vpn, ppn, true, false, true, false);
+	}
+
+	/**
+	 * Write the mapped page <i>vpn</i> back to its file and mark it clean. The
+	 * caller marks the frame busy. Called with frameLock held; the lock is
+	 * released for the write and held again on return.
+	 */
+	private void writeMappedPage(int vpn) {
+		TranslationEntry entry = this.pageTable[vpn];
+		Mapping mapping = this.descriptors[vpn].mapping;
+		int index = vpn - mapping.firstVPN;
+		int length = Math.min(pageSize, mapping.length - index * pageSize);
+		int paddr = Processor.makeAddress(entry.ppn, 0);
+		byte[] buf = Arrays.copyOfRange(Machine.processor().getMemory(), paddr, paddr + length);
+		entry.dirty = false;
+		VMKernel.frameLock.release();
+
+		mapping.file.write(mapping.offset + index * pageSize, buf, 0, length);
 
-			// for termination
-			VMKernel.IPT[VMKernel.victim].entry.used = false;
-			VMKernel.victim = (VMKernel.victim + 1) % totalPhyPages;
+		VMKernel.frameLock.acquire();
+	}
 
+	/**
+	 * Stop sharing a frame from <tt>VMKernel.sharedText</tt> or a fork. Called
+	 * with frameLock held.
+	 * 
+	 * @return <tt>true</tt> if this was the last process using the frame, which
+	 * the caller must then free.
+	 */
+	private boolean unshare(TranslationEntry entry) {
+		VMKernel.Information frame = VMKernel.IPT[entry.ppn];
+		int index = frame.sharers.indexOf(entry);
+		frame.sharers.remove(index);
+		if (frame.owners != null)
+			frame.owners.remove(index);
+		if (!frame.sharers.isEmpty()) {
+			frame.entry = frame.sharers.getFirst();
+			return false;
 		}
+		VMKernel.sharedText.remove(frame.sharedKey);
+		frame.sharedKey = null;
+		frame.sharers = null;
+		frame.owners = null;
+		return true;
+	}
+
+	/**
+	 * Return a frame no process maps any more to the free list. Called with
+	 * frameLock held.
+	 */
+	private static void releaseFrame(int ppn) {
+		VMKernel.Information frame = VMKernel.IPT[ppn];
+		frame.process = null;
+		frame.entry = null;
+		frame.pin = 0;
+		VMKernel.replacementPolicy.frameFreed(ppn);
+		UserKernel.phyPagelLock.acquire();
+		UserKernel.freePhyPages.add(ppn);
+		UserKernel.phyPagelLock.release();
+	}
 
-		int victimNum = VMKernel.victim;
-		VMKernel.victim = (VMKernel.victim + 1) % totalPhyPages;
+	/**
+	 * Return <tt>true</tt> if <i>vpn</i> has never been written and so still
+	 * reads as zeroes: a stack, argument or uninitialized data page with no
+	 * saved copy.
+	 */
+	private boolean isZeroFill(int vpn) {
+		PageDescriptor page = this.descriptors[vpn];
+		return page.swapPage == -1 && page.compressed == null && page.prefetched == null
+				&& page.mapping == null && (page.section == null || !page.section.isInitialzed());
+	}
 
-		// Check if victim page is dirty or not?
-		if (VMKernel.IPT[victimNum].entry.dirty) {
+	/**
+	 * Take a frame off the free list.
+	 * 
+	 * @return the frame, or -1 if there are no free frames.
+	 */
+	private int takeFreePage() {
+		UserKernel.phyPagelLock.acquire();
+		int ppn = UserKernel.freePhyPages.isEmpty() ? -1 : UserKernel.freePhyPages.removeFirst();
+		UserKernel.phyPagelLock.release();
+		return ppn;
+	}
 
-			// write it to swap
-			int spn = (!VMKernel.freeSwapPages.isEmpty()) ? VMKernel.freeSwapPages.removeFirst() : VMKernel.num_sp++;
+	/**
+	 * Return <tt>true</tt> if a busy frame is still writing out <i>entry</i>,
+	 * or any page of this process if <i>entry</i> is <tt>null</tt>.
+	 */
+	private boolean isPagingOut(TranslationEntry entry) {
+		for (VMKernel.Information frame : VMKernel.IPT) {
+			if (!frame.busy)
+				continue;
+			if (frame.entry != null && frame.process == this
+					&& (entry == null || frame.entry == entry))
+				return true;
+			// a copy-on-write frame writes out its sharers one at a time
+			if (frame.owners != null && frame.owners.contains(this)
+					&& (entry == null || frame.sharers.contains(entry)))
+				return true;
+		}
+		return false;
+	}
 
-			int pos = spn * this.pageSize;
-			byte[] buf = Machine.processor().getMemory();
-			int off = Processor.makeAddress(VMKernel.IPT[victimNum].entry.ppn, 0);
+	/**
+	 * Return <tt>true</tt> if <i>entry</i> maps a frame shared with a forked
+	 * process, which must be copied before it is written.
+	 */
+	private static boolean isCopyOnWrite(TranslationEntry entry) {
+		return entry.ppn != VMKernel.zeroPage && VMKernel.IPT[entry.ppn].owners != null;
+	}
 
-			VMKernel.swapFile.write(pos, buf, off, this.pageSize);
-			VMKernel.IPT[victimNum].entry.vpn = spn; // for the process using this page before
+	/**
+	 * Return <tt>true</tt> if some frame is pinned or busy, and so will wake
+	 * <tt>frameReleased</tt> when it is released.
+	 */
+	private static boolean isInTransit() {
+		for (VMKernel.Information frame : VMKernel.IPT) {
+			if (frame.pin > 0 || frame.busy)
+				return true;
 		}
+		return false;
+	}
 
-		// The victimNum is the ppn
-		VMKernel.IPT[victimNum].entry.valid = false; // process A -> swap file, no longer valid
+	/*
+	 * No free memory, need to evict a page. The victim is chosen by
+	 * VMKernel.replacementPolicy. It will return ppn, or -1 if it had to wait
+	 * for a frame to be released. Called with frameLock held.
+	 */
+	private int evictPage() {
+		int victimNum = VMKernel.replacementPolicy.chooseVictim();
+		if (victimNum == -1 && !isInTransit()) {
+			// only recently faulted pages are left, and waiting frees nothing
+			VMKernel.evictRecent = true;
+			victimNum = VMKernel.replacementPolicy.chooseVictim();
+			VMKernel.evictRecent = false;
+		}
+		if (victimNum == -1) {
+			// everything is pinned or in transit
+			VMKernel.frameReleased.sleep();
+			return -1;
+		}
+		Machine.incrNumPageEvictions();
 		return victimNum;
 	}
 
 	/*
-	 * The TE is dirty, We nedd to swap page in
+	 * The page was written to swap, We nedd to swap page in. The swap page is
+	 * kept, so evicting the page again while it is clean costs no write.
 	 */
-	private void handleDirtyPage(int vpn, int next_ppn) {
+	private TranslationEntry handleDirtyPage(int vpn, int next_ppn, int spn, int ahead) {
 
-		int pos = this.pageTable[vpn].vpn * Processor.pageSize;
 		byte[] buf = Machine.processor().getMemory();
 		int off = Processor.makeAddress(next_ppn, 0);
 		// from file to memory
-		VMKernel.swapFile.read(pos, buf, off, Processor.pageSize);
-		VMKernel.freeSwapPages.add(pageTable[vpn].vpn);
+		if (ahead == 0) {
+			VMKernel.swapFile.read(spn * Processor.pageSize, buf, off, Processor.pageSize);
+		} else {
+			// the following pages come along in the same read and wait in
+			// their descriptors until faulted on
+			byte[] run = new byte[(ahead + 1) * pageSize];
+			VMKernel.swapFile.read(spn * Processor.pageSize, run, 0, run.length);
+			System.arraycopy(run, 0, buf, off, pageSize);
+			this.dropReadAhead();
+			for (int i = 1; i <= ahead; i++)
+				this.descriptors[vpn + i].prefetched = Arrays.copyOfRange(run, i * pageSize, (i + 1) * pageSize);
+			this.readAheadFirst = vpn + 1;
+			this.readAheadLast = vpn + ahead;
+		}
+		Machine.incrNumSwapReads();
 		// Notice the dirty bit!!
-		this.pageTable[vpn] = new TranslationEntry(vpn, next_ppn, true, false, true, false);
+		return new TranslationEntry(vpn, next_ppn, true, false, true, false);
 
 	}
 
-	private void fillZero(int vpn, int ppn) {
+	private TranslationEntry fillZero(int vpn, int ppn) {
 
-		int pageSize = Processor.pageSize;
-		byte[] data = new byte[pageSize];
-		for (int i = 0; i < data.length; ++i)
-			data[i] = 0;
 		byte[] dest = Machine.processor().getMemory();
 		int destPos = Processor.makeAddress(ppn, 0);
-		System.arraycopy(data, 0, dest, destPos, pageSize);
-		this.pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, true, false);
+		Arrays.fill(dest, destPos, destPos + pageSize, (byte) 0);
+		return new TranslationEntry(vpn, ppn, true, false, true, false);
 	}
 
+	/**
+	 * Where a virtual page's contents live while it is not resident.
+	 */
+	private static class PageDescriptor {
+		PageDescriptor(CoffSection section, int sectionPage) {
+			this.section = section;
+			this.sectionPage = sectionPage;
+		}
+
+		/** The COFF section backing this page, or null for a zero-fill page. */
+		CoffSection section;
+
+		/** The page's index within <tt>section</tt>. */
+		int sectionPage;
+
+		/** The swap page holding this page, or -1 if it was never written out. */
+		int swapPage = -1;
+
+		/** The page's contents if read ahead from swap and not yet faulted on. */
+		byte[] prefetched;
+
+		/** The page's image in the compressed swap tier, or null. */
+		byte[] compressed;
+
+		/** The page's key in <tt>VMKernel.sharedText</tt>, or null if private. */
+		String sharedKey;
+
+		/** The file mapping this page belongs to, or null. */
+		Mapping mapping;
+	}
+
+	/**
+	 * A range of a file mapped into the address space by <tt>mmap()</tt>.
+	 */
+	private static class Mapping {
+		Mapping(OpenFile file, int offset, int length, int firstVPN) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+			this.firstVPN = firstVPN;
+			this.numPages = (length - 1) / pageSize + 1;
+		}
+
+		/** The mapping's own handle on the file. */
+		OpenFile file;
+
+		/** The file position mapped at <tt>firstVPN</tt>. */
+		int offset;
+
+		/** The number of bytes mapped. */
+		int length;
+
+		/** The first virtual page of the mapping. */
+		int firstVPN;
+
+		/** The number of virtual pages the mapping covers. */
+		int numPages;
+	}
+
+	/**
+	 * One descriptor per virtual page, built by <tt>loadSections()</tt>, or
+	 * null for a page removed by <tt>munmap()</tt>.
+	 */
+	private PageDescriptor[] descriptors;
+
+	/** The first page above the stack and arguments, where mappings start. */
+	private int mappedBase;
+
+	/** The files this process has mapped, in no particular order. */
+	private LinkedList<Mapping> mappings = new LinkedList<Mapping>();
+
+	/** The first swap page of each chunk of pages, or -1 if not reserved. */
+	private int[] swapChunks;
+
+	/** The last page faulted on, to detect sequential access. */
+	private int lastFault = -2;
+
+	/** The last two pages faulted in, newest first; see <tt>keepResident()</tt>. */
+	private TranslationEntry[] recentFaults = new TranslationEntry[2];
+
+	/** The pages brought in by the last read-ahead. */
+	private int readAheadFirst = 0, readAheadLast = -1;
+
+	private static final int syscallMmap = 10, syscallMunmap = 14;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
@@ -0,0 +1,74 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Like <tt>ClockPolicy</tt>, a hand sweeps the frames,
+ * but each frame also remembers when its page was last seen referenced. A
+ * page that has not been referenced for more than <tt>WSClockPolicy.tau</tt>
+ * ticks has left the working set, and a clean page out of the working set is
+ * evicted in preference to anything that would need a swap write.
+ *
+ * <p>
+ * Nachos cannot start a write-back and keep sweeping, so when there is no
+ * clean old page the policy picks the old dirty page that would have been
+ * scheduled first. Only when every page is still in the working set does it
+ * fall back to the least recently used page, clean before dirty.
+ */
+public class WSClockPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		super();
+		tau = Config.getInteger("WSClockPolicy.tau", 10000);
+		lastUse = new long[numFrames];
+	}
+
+	public void frameLoaded(int ppn, Object page) {
+		lastUse[ppn] = Machine.timer().getTime();
+	}
+
+	public int chooseVictim() {
+		long now = Machine.timer().getTime();
+		int oldDirty = -1, youngClean = -1, youngDirty = -1;
+
+		// a page referenced on the first lap may be judged on the second
+		for (int i = 0; i < 2 * numFrames; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+			if (!evictable(ppn))
+				continue;
+			if (referenced(ppn)) {
+				lastUse[ppn] = now;
+				continue;
+			}
+
+			boolean dirty = dirty(ppn);
+			if (now - lastUse[ppn] > tau) {
+				if (!dirty)
+					return ppn;
+				if (oldDirty == -1)
+					oldDirty = ppn;
+			} else if (!dirty) {
+				if (youngClean == -1 || lastUse[ppn] < lastUse[youngClean])
+					youngClean = ppn;
+			} else {
+				if (youngDirty == -1 || lastUse[ppn] < lastUse[youngDirty])
+					youngDirty = ppn;
+			}
+		}
+
+		if (oldDirty != -1)
+			return oldDirty;
+		return (youngClean != -1) ? youngClean : youngDirty;
+	}
+
+	/** Ticks without a reference after which a page leaves the working set. */
+	private int tau;
+
+	/** When each frame's page was last seen referenced. */
+	private long[] lastUse;
+
+	private int hand = 0;
+}